@@ -0,0 +1,79 @@
+package com.mxbi.chip8;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// MACHINES machines of one ROM for CYCLES cycles each: stepped together by a BatchEngine, or as that many separate
+// CPUs running engine one after another (batch ignores engine). Every machine gets its own seed and keys. Run from
+// the repository root so roms/ resolves
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class BatchEngineBenchmark {
+    static final int MACHINES = 1024;
+    static final long CYCLES = 20_000;
+
+    @Param({"pong.ch8", "rushhour.ch8", "keypad-test.ch8"})
+    public String rom;
+
+    @Param({"PREDECODED", "JIT"})
+    public CPU.Engine engine;
+
+    private RomImage image;
+
+    @Setup(Level.Trial)
+    public void scan() throws IOException {
+        image = RomCatalog.scan(new File("roms")).byName(rom);
+    }
+
+    private static int keysFor(int machine) {
+        return machine % 17 == 16 ? 0 : 1 << (machine % 17);
+    }
+
+    @Benchmark
+    public long batch() {
+        BatchEngine batch = new BatchEngine(image, MACHINES);
+        for (int m=0; m<MACHINES; m++) {
+            batch.setSeed(m, m);
+            batch.setKeys(m, keysFor(m));
+        }
+        batch.run(CYCLES);
+        return batch.frameHash(MACHINES - 1);
+    }
+
+    @Benchmark
+    public long cpus() throws InterruptedException {
+        long hash = 0;
+        for (int m=0; m<MACHINES; m++) {
+            int held = keysFor(m);
+            HeadlessDisplay display = new HeadlessDisplay();
+            CPU cpu = new CPU(image.newMemory(), display, new KeyboardInterface() {
+                @Override
+                public boolean isPressed(int key) {
+                    return key < 16 && (held & (1 << key)) != 0;
+                }
+
+                @Override
+                public int pollAnyKey() {
+                    return held == 0 ? -1 : Integer.numberOfTrailingZeros(held);
+                }
+
+                @Override
+                public long nextChange(long cycle) {
+                    return Long.MAX_VALUE;
+                }
+            }, CPU.UNLIMITED);
+            cpu.setEngine(engine);
+            cpu.setSeed(m);
+            cpu.run(CYCLES);
+            hash = display.frameHash();
+        }
+        return hash;
+    }
+}
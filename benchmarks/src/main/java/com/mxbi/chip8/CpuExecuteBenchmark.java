@@ -0,0 +1,74 @@
+package com.mxbi.chip8;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Throughput of CPU.execute() for each class of opcode. The ROM is the same instruction repeated, followed by a
+// jump back to the start, so almost every execute() call dispatches the opcode being measured
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CpuExecuteBenchmark {
+    static final int REPEATS = 256;
+    static final int OPS = 1024;
+
+    @Param({"LOAD", "ADD", "ALU", "SKIP", "JUMP", "INDEX", "RANDOM", "DRAW", "BCD", "STORE", "RESTORE"})
+    public String opcode;
+
+    private CPU cpu;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        int[] rom = new int[REPEATS + 1];
+        for (int i = 0; i < REPEATS; i++) {
+            int address = ROMLoader.PROGRAM_START + i * 2;
+            rom[i] = instructionFor(opcode, address);
+        }
+        rom[REPEATS] = 0x1000 | ROMLoader.PROGRAM_START;
+
+        HeadlessDisplay display = new HeadlessDisplay();
+        cpu = new CPU(toBytes(rom), display, display, CPU.UNLIMITED);
+        // Point I away from the program, so stores don't overwrite it
+        cpu.I = 0xE00;
+    }
+
+    static int instructionFor(String opcode, int address) {
+        switch (opcode) {
+            case "LOAD": return 0x6A42;    // VA = 0x42
+            case "ADD": return 0x7A01;     // VA += 1
+            case "ALU": return 0x8AB4;     // VA += VB, with carry
+            case "SKIP": return 0x3AFF;    // skip if VA == 0xFF, never taken here
+            case "JUMP": return 0x1000 | (address + 2);
+            case "INDEX": return 0xAE00;   // I = 0xE00
+            case "RANDOM": return 0xCA0F;  // VA = rand & 0x0F
+            case "DRAW": return 0xDAB5;    // 5-row sprite at (VA, VB)
+            case "BCD": return 0xFA33;     // BCD of VA at I
+            case "STORE": return 0xFF55;   // V0..VF to memory at I
+            case "RESTORE": return 0xFF65; // V0..VF from memory at I
+            default: throw new IllegalArgumentException("Unknown opcode class " + opcode);
+        }
+    }
+
+    static byte[] toBytes(int[] instrs) {
+        byte[] bytes = new byte[instrs.length * 2];
+        for (int i = 0; i < instrs.length; i++) {
+            bytes[i * 2] = (byte) (instrs[i] >> 8);
+            bytes[i * 2 + 1] = (byte) instrs[i];
+        }
+        return bytes;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OPS)
+    public boolean execute() {
+        boolean finished = false;
+        for (int i = 0; i < OPS; i++) {
+            finished |= cpu.execute();
+        }
+        return finished;
+    }
+}
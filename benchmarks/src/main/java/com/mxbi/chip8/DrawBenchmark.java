@@ -0,0 +1,59 @@
+package com.mxbi.chip8;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Sprite drawing under different sprite sizes: the full Dxyn instruction, and DisplayInterface.draw on its own.
+// x is stepped each call so both byte-aligned and unaligned (wrapping) sprites are covered
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DrawBenchmark {
+    static final int SPRITE_ADDRESS = 0xE00;
+
+    @Param({"1", "5", "8", "15"})
+    public int rows;
+
+    private CPU cpu;
+    private HeadlessDisplay display;
+    private Memory ram;
+    private int x;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        // The ROM is a single draw of VA, VB repeated, then a jump back to the start
+        int[] rom = new int[CpuExecuteBenchmark.REPEATS + 1];
+        for (int i = 0; i < CpuExecuteBenchmark.REPEATS; i++) {
+            rom[i] = 0xDAB0 | rows;
+        }
+        rom[CpuExecuteBenchmark.REPEATS] = 0x1000 | ROMLoader.PROGRAM_START;
+
+        display = new HeadlessDisplay();
+        ram = Memory.heap();
+        byte[] program = CpuExecuteBenchmark.toBytes(rom);
+        ram.write(ROMLoader.PROGRAM_START, program, 0, program.length);
+        for (int i = 0; i < 15; i++) {
+            ram.set(SPRITE_ADDRESS + i, 0xA5 ^ (i * 0x11));
+        }
+
+        cpu = new CPU(ram, display, display, CPU.UNLIMITED);
+        cpu.I = SPRITE_ADDRESS;
+        cpu.V[0xA] = 3;
+        cpu.V[0xB] = 7;
+    }
+
+    @Benchmark
+    public boolean executeDxyn() {
+        return cpu.execute();
+    }
+
+    @Benchmark
+    public boolean displayDraw() {
+        x = (x + 1) & 0x3F;
+        return display.draw(ram, SPRITE_ADDRESS, rows, x, 7);
+    }
+}
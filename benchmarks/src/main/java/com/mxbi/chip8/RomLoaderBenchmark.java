@@ -0,0 +1,43 @@
+package com.mxbi.chip8;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Loading each bundled ROM from disk, or from a RomCatalog scanned up front. Run from the repository root so roms/ resolves
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RomLoaderBenchmark {
+    @Param({"pong.ch8", "breakout.ch8", "rushhour.ch8", "BC_test.ch8", "test_opcode.ch8", "keypad-test.ch8"})
+    public String rom;
+
+    private final Memory ram = Memory.heap();
+    private RomImage image;
+
+    @Setup
+    public void scan() throws IOException {
+        image = RomCatalog.scan(new File("roms")).byName(rom);
+    }
+
+    @Benchmark
+    public byte[] readRomFromFile() throws IOException {
+        return ROMLoader.readRomFromFile("roms/" + rom);
+    }
+
+    @Benchmark
+    public int loadRomFromFile() throws IOException {
+        return ROMLoader.loadRomFromFile("roms/" + rom, ram);
+    }
+
+    // RAM ready to run from, all BatchRunner does per run once the catalog is scanned
+    @Benchmark
+    public Memory catalogNewMemory() {
+        return image.newMemory();
+    }
+}
@@ -0,0 +1,55 @@
+package com.mxbi.chip8;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Renders frames the way SwingDisplay does, but without a window. Each invocation alternates between two
+// random screens so every render has changes to draw. fill is the fraction of pixels lit
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class SwingRenderBenchmark {
+    @Param({"0.0", "0.1", "0.5"})
+    public double fill;
+
+    @Param({"10", "30"})
+    public int scale;
+
+    private final FrameBuffer[] frames = {new FrameBuffer(), new FrameBuffer()};
+    private FrameRenderer renderer;
+    private int i;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(8);
+        for (FrameBuffer frame : frames) {
+            fillRandomly(frame, random);
+        }
+        renderer = new FrameRenderer(scale);
+    }
+
+    private void fillRandomly(FrameBuffer buffer, Random random) {
+        for (int y = 0; y < 32; y++) {
+            for (int x = 0; x < 64; x += 8) {
+                int row = 0;
+                for (int bit = 0; bit < 8; bit++) {
+                    if (random.nextDouble() < fill) {
+                        row |= 0x80 >> bit;
+                    }
+                }
+                buffer.drawRow(row, x, y);
+            }
+        }
+    }
+
+    @Benchmark
+    public boolean renderFrame() {
+        i ^= 1;
+        return renderer.render(frames[i], frames[i ^ 1]);
+    }
+}
@@ -0,0 +1,47 @@
+package com.mxbi.chip8;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Whole-ROM runs of the bundled roms/ on a headless display, at unlimited speed. Each invocation boots a fresh
+// machine and runs it for a fixed number of cycles, so the score is comparable across engines
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class WholeRomBenchmark {
+    static final long CYCLES = 200_000;
+
+    @Param({"pong.ch8", "breakout.ch8", "rushhour.ch8", "BC_test.ch8", "test_opcode.ch8", "keypad-test.ch8"})
+    public String rom;
+
+    @Param({"INTERPRETER", "PREDECODED", "JIT"})
+    public CPU.Engine engine;
+
+    @Param({"true"})
+    public boolean fusion;
+
+    private byte[] program;
+    private BatchRunner.Options options;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        program = ROMLoader.readRomFromFile("roms/" + rom);
+        options = new BatchRunner.Options();
+        options.engine = engine;
+        options.fusion = fusion;
+    }
+
+    @Benchmark
+    public long run() {
+        BatchRunner.Result result = BatchRunner.runRom(rom, program, CYCLES, options);
+        if (result.error != null) {
+            throw new IllegalStateException(result.error);
+        }
+        return result.frameHash;
+    }
+}
@@ -0,0 +1,175 @@
+package com.mxbi.chip8;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+// Ahead-of-time compiler: statically follows a ROM's control flow from 0x200, compiles every reachable basic block
+// with BlockCompiler and stores the class files in a cache directory keyed by a hash of the ROM.
+// Loading the cache before running makes the JIT engine start out with all that code compiled, so there's no
+// interpretation or warmup for it. Anything the static pass can't see (computed Bnnn jumps, code that gets
+// modified at runtime) is left to the JIT and the interpreter as usual.
+// Usage: AotCompiler <cache directory> <rom files...>
+public class AotCompiler {
+
+    // Basic blocks reachable from the entry point, by start address, with the addresses each can continue at
+    public static class ControlFlowGraph {
+        public final Map<Integer, JitBlock> blocks = new TreeMap<>();
+        public final Map<Integer, List<Integer>> successors = new TreeMap<>();
+
+        // Addresses of instructions the JIT never compiles, which will always be interpreted
+        public final Set<Integer> interpreted = new TreeSet<>();
+    }
+
+    public static ControlFlowGraph buildControlFlowGraph(byte[] rom) {
+        Memory ram = Memory.heap();
+        ram.write(ROMLoader.PROGRAM_START, rom, 0, rom.length);
+        int romEnd = ROMLoader.PROGRAM_START + rom.length;
+        Jit jit = new Jit(ram);
+
+        ControlFlowGraph cfg = new ControlFlowGraph();
+        Deque<Integer> work = new ArrayDeque<>();
+        work.add(ROMLoader.PROGRAM_START);
+
+        while (!work.isEmpty()) {
+            int pc = work.poll();
+            if (pc + 1 >= romEnd || cfg.blocks.containsKey(pc) || cfg.interpreted.contains(pc)) {
+                continue;
+            }
+
+            JitBlock block = jit.discover(pc);
+            List<Integer> next = new ArrayList<>();
+            if (block.length() == 0) {
+                // Excluded instruction, interpreted on its own. Everything but a self-jump carries on after it
+                cfg.interpreted.add(pc);
+                int instr = (ram.get(pc) << 8) | ram.get(pc + 1);
+                int op = instr & 0xF000;
+                if (!((op == 0x1000 || op == 0x2000) && CPU.getn(instr) == pc)) {
+                    next.add(pc + 2);
+                }
+            } else {
+                cfg.blocks.put(pc, block);
+                // Skips leave the block when they skip, past the instruction after them
+                for (int i=0; i<block.length(); i++) {
+                    if (Jit.classify(block.instrs[i]) == Jit.SKIP) {
+                        next.add(pc + 2 * i + 4);
+                    }
+                }
+                int last = block.instrs[block.length() - 1];
+                if (Jit.classify(last) == Jit.TERMINATOR) {
+                    next.addAll(terminatorSuccessors(last, block.lastAddress));
+                } else {
+                    next.add(block.end); // Ran into an excluded instruction or the length limit
+                }
+            }
+
+            cfg.successors.put(pc, next);
+            work.addAll(next);
+        }
+        return cfg;
+    }
+
+    private static List<Integer> terminatorSuccessors(int instr, int address) {
+        switch ((instr & 0xF000) >>> 12) {
+            case 0x0: return Collections.emptyList(); // 00EE, returns to after whichever call got us here
+            case 0x1: return Collections.singletonList(CPU.getn(instr));
+            case 0x2: return Arrays.asList(CPU.getn(instr), address + 2); // Callee, and where it returns to
+            case 0xB: return Collections.emptyList(); // Computed jump, can't follow statically
+            default: return Collections.singletonList(address + 2); // Dxyn, Fx15, Fx18, Fx33, Fx55
+        }
+    }
+
+    // Compile every block in the graph, returns block key -> class file
+    public static Map<String, byte[]> compile(ControlFlowGraph cfg) {
+        Map<String, byte[]> byKey = new LinkedHashMap<>();
+        for (JitBlock block : cfg.blocks.values()) {
+            byKey.put(block.key, BlockCompiler.generate(BlockCompiler.className(block.key), block.start, block.instrs));
+        }
+        return byKey;
+    }
+
+    // Where the compiled classes for a ROM live, the codegen version is part of it so stale code is never loaded
+    public static File cacheDirFor(File cacheRoot, byte[] rom) {
+        return new File(cacheRoot, hash(rom) + "-v" + BlockCompiler.CODEGEN_VERSION);
+    }
+
+    // Written last, so a ROM with no compilable blocks (or one whose save was cut short) is told apart from a complete
+    // cache entry, and a ROM with nothing to compile isn't compiled again on every launch
+    static final String COMPLETE_MARKER = "complete";
+
+    public static void save(File dir, Map<String, byte[]> classes) throws IOException {
+        Files.createDirectories(dir.toPath());
+        for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+            Files.write(new File(dir, entry.getKey() + ".class").toPath(), entry.getValue());
+        }
+        Files.write(new File(dir, COMPLETE_MARKER).toPath(), new byte[0]);
+    }
+
+    // Load a ROM's cached classes for every CPU to use, returns the number of blocks loaded (0 if nothing is cached)
+    public static int load(File cacheRoot, byte[] rom) throws IOException {
+        File[] files = cacheDirFor(cacheRoot, rom).listFiles((dir, name) -> name.endsWith(".class"));
+        if (files == null) {
+            return 0;
+        }
+
+        int loaded = 0;
+        for (File file : files) {
+            String key = file.getName().substring(0, file.getName().length() - ".class".length());
+            CompiledBlock code = BlockCompiler.define(Files.readAllBytes(file.toPath()));
+            if (code != null) {
+                BlockCompiler.preload(key, code);
+                loaded++;
+            }
+        }
+        return loaded;
+    }
+
+    // Load from the cache, compiling and storing the ROM first if it isn't there yet
+    public static int loadOrCompile(File cacheRoot, byte[] rom) throws IOException {
+        int loaded = load(cacheRoot, rom);
+        if (new File(cacheDirFor(cacheRoot, rom), COMPLETE_MARKER).exists()) {
+            return loaded;
+        }
+        save(cacheDirFor(cacheRoot, rom), compile(buildControlFlowGraph(rom)));
+        return load(cacheRoot, rom);
+    }
+
+    static String hash(byte[] rom) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(rom);
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: AotCompiler <cache directory> <rom files...>");
+            System.exit(1);
+        }
+
+        File cacheRoot = new File(args[0]);
+        for (int i=1; i<args.length; i++) {
+            byte[] rom = ROMLoader.readRomFromFile(args[i]);
+            ControlFlowGraph cfg = buildControlFlowGraph(rom);
+            Map<String, byte[]> classes = compile(cfg);
+            File dir = cacheDirFor(cacheRoot, rom);
+            save(dir, classes);
+
+            int instructions = 0;
+            for (JitBlock block : cfg.blocks.values()) {
+                instructions += block.length();
+            }
+            System.out.println(String.format("%s: %d blocks (%d instructions) compiled, %d interpreted instructions -> %s",
+                    args[i], classes.size(), instructions, cfg.interpreted.size(), dir));
+        }
+    }
+}
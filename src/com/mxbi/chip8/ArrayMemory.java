@@ -0,0 +1,34 @@
+package com.mxbi.chip8;
+
+public class ArrayMemory implements Memory {
+    private final byte[] bytes;
+
+    public ArrayMemory(int size) {
+        bytes = new byte[size];
+    }
+
+    @Override
+    public int size() {
+        return bytes.length;
+    }
+
+    @Override
+    public int get(int address) {
+        return bytes[address] & 0xFF;
+    }
+
+    @Override
+    public void set(int address, int value) {
+        bytes[address] = (byte) value;
+    }
+
+    @Override
+    public void read(int address, byte[] dest, int offset, int length) {
+        System.arraycopy(bytes, address, dest, offset, length);
+    }
+
+    @Override
+    public void write(int address, byte[] src, int offset, int length) {
+        System.arraycopy(src, offset, bytes, address, length);
+    }
+}
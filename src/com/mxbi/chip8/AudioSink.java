@@ -0,0 +1,13 @@
+package com.mxbi.chip8;
+
+// Where the sound timer's beep goes. The timer turns the tone on when it's set and off when it runs out,
+// so the beep lasts exactly as long as the timer (in emulated time)
+public interface AudioSink {
+    // Plays nothing, for headless runs and tests
+    AudioSink SILENT = playing -> {};
+
+    // Called from the CPU thread, must not block
+    void setPlaying(boolean playing);
+
+    default void close() {};
+}
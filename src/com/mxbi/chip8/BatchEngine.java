@@ -0,0 +1,611 @@
+package com.mxbi.chip8;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Many machines running the same ROM, with all their state in flat arrays (struct of arrays) instead of one CPU object
+// each: machine m's RAM is ram[m*4096, (m+1)*4096), its registers V[m*16, m*16+16), its screen rows
+// screen[m*32, m*32+32) and so on. The ROM is decoded once for all of them. Machines never affect each other and keys
+// only change between run() calls, so run() takes the machines one after another, each running all of the call's
+// cycles in one burst with its PC, I and cycle count in locals. A machine's 4K of RAM stays in cache throughout, and
+// there's no scheduler, Memory call or decode per instruction. Machines share nothing while running, so slices of
+// them can be run on different threads at once (see BatchRunner --batch-engine). Delay wait loops (Fx07, 3xkk on the
+// same register, 1nnn back to the Fx07) and Fx0A waits are skipped over in one go rather than spun, since every spin
+// until the next timer tick does exactly the same thing (like FusedOp.DELAY_WAIT).
+//
+// Each machine behaves exactly like a CPU running execute() unthrottled: same registers, RAM, screen, timers and
+// cycle count, given the same seed and keys (a machine's keys are read as the program reads them, like a
+// KeyboardInterface). A machine stops where its CPU would: when PC gets stuck (counting that instruction) or on an
+// error (not counting it), and then stays as it was.
+// Usage: BatchEngine <rom> <machines> <cycles> [INTERPRETER|PREDECODED|JIT], compares the speed and results with
+// separate CPUs running that engine (INTERPRETER, the default engine, if not given), all on one thread
+public class BatchEngine {
+    private static final int RAM_BITS = 12; // Memory.SIZE is 1 << RAM_BITS
+    private static final int SCREEN_ROWS = FrameBuffer.HEIGHT;
+    private static final int ROUNDS = 5; // Timing rounds in main()
+
+    private final int count;
+
+    // Machine state, see above for the layout
+    private final byte[] ram;
+    private final byte[] V;
+    private final short[] stack;
+    private final byte[] SP;
+    private final short[] PC;
+    private final short[] I;
+    private final int[] delay;
+    private final long[] delayNext; // Emulated time after which the delay timer next ticks, like Timer
+    private final int[] sound;
+    private final long[] soundNext;
+    private final long[] screen;
+    private final long[] random;
+    private final int[] keys; // Bit n is set if key n is held down
+    private final boolean[] waitingForKey;
+    private final long[] cycles; // Cycles each machine has run
+
+    // Every instruction word in the ROM's image, with its DecodedOp kind above it (see decoded()), shared by all
+    // machines. Machines fetch from here rather than their own RAM, until they write to the page the word is in (bit n
+    // of written is page n, PAGE_BITS of RAM each). Even then, a word that still matches the image keeps its kind
+    private static final int PAGE_BITS = 6;
+    private final int[] code = new int[Memory.SIZE];
+    private final long[] written;
+
+    // Stopped machines, and the cycle count they stopped at
+    private final long[] stoppedAt;
+    private final String[] errors;
+
+    public BatchEngine(RomImage rom, int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("Need at least one machine, got " + count);
+        }
+        this.count = count;
+        ram = new byte[count << RAM_BITS];
+        V = new byte[count * 16];
+        stack = new short[count * 16];
+        SP = new byte[count];
+        PC = new short[count];
+        I = new short[count];
+        delay = new int[count];
+        delayNext = new long[count];
+        sound = new int[count];
+        soundNext = new long[count];
+        screen = new long[count * SCREEN_ROWS];
+        random = new long[count];
+        keys = new int[count];
+        waitingForKey = new boolean[count];
+        cycles = new long[count];
+        written = new long[count];
+        stoppedAt = new long[count];
+        errors = new String[count];
+
+        for (int m=0; m<count; m++) {
+            rom.copyImage(ram, m << RAM_BITS);
+            PC[m] = ROMLoader.PROGRAM_START;
+            random[m] = ThreadLocalRandom.current().nextLong();
+            stoppedAt[m] = -1;
+        }
+        for (int a=0; a + 1<Memory.SIZE; a++) {
+            code[a] = decoded(((ram[a] & 0xFF) << 8) | (ram[a + 1] & 0xFF));
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    // Like CPU.setSeed()
+    public void setSeed(int machine, long seed) {
+        random[machine] = seed;
+    }
+
+    // Keys held down on machine, bit n for key n. Can be changed between run() calls
+    public void setKeys(int machine, int keys) {
+        this.keys[machine] = keys & 0xFFFF;
+    }
+
+    // Runs every machine that hasn't stopped for up to maxCycles cycles
+    public void run(long maxCycles) {
+        run(0, count, maxCycles);
+    }
+
+    // Runs machines [from, to) that haven't stopped for up to maxCycles cycles each. Calls for slices that don't
+    // overlap can be made from different threads at the same time
+    public void run(int from, int to, long maxCycles) {
+        for (int m=from; m<to; m++) {
+            if (stoppedAt[m] < 0) {
+                // A machine halted on Fx0A still spends the cycles waiting, like the CPU
+                long end = cycles[m] + maxCycles;
+                run(m, end);
+                cycles[m] = end;
+            }
+        }
+    }
+
+    // Runs machine m from its cycle count up to end, or until it stops
+    private void run(int m, long end) {
+        int v = m * 16;
+        int base = m << RAM_BITS;
+        int pc = PC[m];
+        int index = I[m];
+        long pages = written[m];
+        long tick = nextTick(m);
+        long c = cycles[m];
+        steps:
+        while (c < end) {
+            if (c >= tick) {
+                tick = tickTimers(m, c, c);
+            }
+            if (pc < 0 || pc + 1 >= Memory.SIZE) {
+                fail(m, c, "Fetch from outside memory at " + pc);
+                break;
+            }
+            int decoded = code[pc];
+            if ((pages & (1L << (pc >>> PAGE_BITS))) != 0) {
+                int fetched = ((ram[base + pc] & 0xFF) << 8) | (ram[base + pc + 1] & 0xFF);
+                if (fetched != (decoded & 0xFFFF)) {
+                    decoded = decoded(fetched);
+                }
+            }
+            int word = decoded & 0xFFFF;
+            int r = (word >>> 8) & 0xF;
+            int x = v + r;
+            int y = v + ((word >>> 4) & 0xF);
+            int f = v + 0xF;
+            int next = pc + 2;
+
+            // Same order of reads and writes as the CPU, so VF comes out the same when x or y is F
+            switch (decoded >>> 16) {
+                case DecodedOp.OP_00E0:
+                    Arrays.fill(screen, m * SCREEN_ROWS, (m + 1) * SCREEN_ROWS, 0);
+                    break;
+                case DecodedOp.OP_00EE: {
+                    int sp = SP[m];
+                    if (sp < 0) {
+                        fail(m, c, "0x00EE: Tried to pop empty stack");
+                        break steps;
+                    }
+                    next = stack[m * 16 + sp] + 2;
+                    SP[m] = (byte) (sp - 1);
+                    break;
+                }
+                case DecodedOp.OP_0nnn: break; // Ignored, like CPU.op_0nnn()
+                case DecodedOp.OP_1nnn: next = word & 0xFFF; break;
+                case DecodedOp.OP_2nnn: {
+                    int sp = SP[m] + 1;
+                    SP[m] = (byte) sp;
+                    if (sp >= 16) {
+                        fail(m, c, "0x2nnn: Stack overflow");
+                        break steps;
+                    }
+                    stack[m * 16 + sp] = (short) pc;
+                    next = word & 0xFFF;
+                    break;
+                }
+                case DecodedOp.OP_3xkk: if ((V[x] & 0xFF) == (word & 0xFF)) next += 2; break;
+                case DecodedOp.OP_4xkk: if ((V[x] & 0xFF) != (word & 0xFF)) next += 2; break;
+                case DecodedOp.OP_5xy0: if (V[x] == V[y]) next += 2; break;
+                case DecodedOp.OP_9xy0: if (V[x] != V[y]) next += 2; break;
+                case DecodedOp.OP_6xkk: V[x] = (byte) word; break;
+                case DecodedOp.OP_7xkk: V[x] += (byte) word; break;
+                case DecodedOp.OP_8xy0: V[x] = V[y]; break;
+                case DecodedOp.OP_8xy1: V[x] |= V[y]; break;
+                case DecodedOp.OP_8xy2: V[x] &= V[y]; break;
+                case DecodedOp.OP_8xy3: V[x] ^= V[y]; break;
+                case DecodedOp.OP_8xy4: {
+                    int sum = (V[x] & 0xFF) + (V[y] & 0xFF);
+                    V[f] = (byte) (sum > 0xFF ? 1 : 0);
+                    V[x] = (byte) sum;
+                    break;
+                }
+                case DecodedOp.OP_8xy5: {
+                    int diff = (V[x] & 0xFF) - (V[y] & 0xFF);
+                    V[f] = (byte) (diff < 0 ? 0 : 1);
+                    V[x] = (byte) diff;
+                    break;
+                }
+                case DecodedOp.OP_8xy6:
+                    V[f] = (byte) (V[x] & 0x1);
+                    V[x] = (byte) ((V[x] & 0xFF) >>> 1);
+                    break;
+                case DecodedOp.OP_8xy7: {
+                    int diff = (V[y] & 0xFF) - (V[x] & 0xFF);
+                    V[f] = (byte) (diff < 0 ? 0 : 1);
+                    V[x] = (byte) diff;
+                    break;
+                }
+                case DecodedOp.OP_8xyE:
+                    V[f] = (byte) ((V[x] & 0xFF) >> 7);
+                    V[x] = (byte) ((V[x] & 0xFF) << 1);
+                    break;
+                case DecodedOp.OP_Annn: index = word & 0xFFF; break;
+                case DecodedOp.OP_Bnnn: next = (word & 0xFFF) + (V[v] & 0xFF); break;
+                case DecodedOp.OP_Cxkk: V[x] = (byte) (word & CPU.randomByte(random[m] += CPU.RANDOM_STEP)); break;
+                case DecodedOp.OP_Dxyn: draw(m, V[x] & 0xFF, V[y] & 0xFF, index, word & 0xF); break;
+                case DecodedOp.OP_Ex9E: if (pressed(m, V[x] & 0xFF)) next += 2; break;
+                case DecodedOp.OP_ExA1: if (!pressed(m, V[x] & 0xFF)) next += 2; break;
+                case DecodedOp.OP_Fx07:
+                    V[x] = (byte) delay[m];
+                    long wake = delayWait(m, r, pc, c);
+                    if (wake >= end) {
+                        // Spins to the end of the call, leave PC at the instruction of the spin it got to
+                        pc += 2 * (int) ((end - c) % 3);
+                        tickTimers(m, c + 1, end - 1);
+                        break steps;
+                    } else if (wake > c) {
+                        // Runs the Fx07 again once the timer has ticked
+                        tick = tickTimers(m, c + 1, wake - 1);
+                        c = wake;
+                        continue;
+                    }
+                    break;
+                case DecodedOp.OP_Fx0A:
+                    if (keys[m] == 0) {
+                        // Keys can't change until the next call, so PC stays put until then
+                        waitingForKey[m] = true;
+                        tickTimers(m, c + 1, end - 1);
+                        break steps;
+                    }
+                    waitingForKey[m] = false;
+                    V[x] = (byte) Integer.numberOfTrailingZeros(keys[m]);
+                    break;
+                case DecodedOp.OP_Fx15:
+                    delay[m] = V[x] & 0xFF;
+                    delayNext[m] = c * CPU.minClockWaitTime + Timer.timeBetweenUpdates;
+                    tick = nextTick(m);
+                    break;
+                case DecodedOp.OP_Fx18:
+                    sound[m] = V[x] & 0xFF;
+                    soundNext[m] = c * CPU.minClockWaitTime + Timer.timeBetweenUpdates;
+                    tick = nextTick(m);
+                    break;
+                case DecodedOp.OP_Fx1E: {
+                    short i = (short) (index + (V[x] & 0xFF));
+                    if (i > 0xFFF) {
+                        i %= 0x1000;
+                        V[f] = 1;
+                    } else {
+                        V[f] = 0;
+                    }
+                    index = i;
+                    break;
+                }
+                case DecodedOp.OP_Fx29: index = 5 * (V[x] & 0xFF); break;
+                case DecodedOp.OP_Fx33: {
+                    // Digit by digit, so a BCD running off the end of memory writes what the CPU would first
+                    int vx = V[x] & 0xFF;
+                    int i = 0;
+                    while (i < 3 && index + i < Memory.SIZE) {
+                        ram[base + index + i] = (byte) (i == 0 ? vx / 100 : i == 1 ? (vx / 10) % 10 : vx % 10);
+                        i++;
+                    }
+                    pages = wrote(m, index, i);
+                    if (i < 3) {
+                        fail(m, c, "0xFx33: Write outside memory at " + (index + i));
+                        break steps;
+                    }
+                    break;
+                }
+                case DecodedOp.OP_Fx55:
+                    if (index + r + 1 > Memory.SIZE) {
+                        fail(m, c, "0xFx55: Write outside memory at " + index);
+                        break steps;
+                    }
+                    System.arraycopy(V, v, ram, base + index, r + 1);
+                    pages = wrote(m, index, r + 1);
+                    break;
+                case DecodedOp.OP_Fx65:
+                    if (index + r + 1 > Memory.SIZE) {
+                        fail(m, c, "0xFx65: Read outside memory at " + index);
+                        break steps;
+                    }
+                    System.arraycopy(ram, base + index, V, v, r + 1);
+                    break;
+                default:
+                    fail(m, c, invalid(word));
+                    break steps;
+            }
+
+            if (next == pc) {
+                // PC got stuck: the CPU stops after counting the instruction
+                stoppedAt[m] = c + 1;
+                break;
+            }
+            pc = next;
+            c++;
+        }
+        PC[m] = (short) pc;
+        I[m] = (short) index;
+    }
+
+    // An instruction word with its DecodedOp kind in the top 16 bits
+    private static int decoded(int word) {
+        return (CPU.decode(word).kind << 16) | word;
+    }
+
+    private int fetch(int m, int pc) {
+        if ((written[m] & (1L << (pc >>> PAGE_BITS))) == 0) {
+            return code[pc] & 0xFFFF;
+        }
+        int base = m << RAM_BITS;
+        return ((ram[base + pc] & 0xFF) << 8) | (ram[base + pc + 1] & 0xFF);
+    }
+
+    private boolean pressed(int m, int key) {
+        return key < 16 && (keys[m] & (1 << key)) != 0;
+    }
+
+    private static String invalid(int word) {
+        switch (word >>> 12) {
+            case 0x8: return "Unexpected arithmetic instruction " + CPU.instrToString(word);
+            case 0xE: return "Unexpected skip instruction " + CPU.instrToString(word);
+            default: return "Unexpected instruction " + CPU.instrToString(word);
+        }
+    }
+
+    // Like FrameBuffer.draw(), straight into the machine's rows
+    private void draw(int m, int x0, int y0, int start, int height) {
+        int base = m << RAM_BITS;
+        int rows = m * SCREEN_ROWS;
+        int end = Math.min(start + height, Memory.SIZE);
+        boolean collision = false;
+        for (int i=start; i<end; i++) {
+            long bits = Long.rotateRight(((long) (ram[base + i] & 0xFF)) << 56, x0);
+            int row = rows + ((y0 + i - start) & (SCREEN_ROWS - 1));
+            collision |= (screen[row] & bits) != 0;
+            screen[row] ^= bits;
+        }
+        V[m * 16 + 0xF] = (byte) (collision ? 1 : 0);
+    }
+
+    // Machine m wrote length bytes of its RAM from address: it fetches from its own RAM in those pages from now on,
+    // and in the page before, whose last word ends in address. Returns the pages m has written
+    private long wrote(int m, int address, int length) {
+        if (length == 0) {
+            return written[m];
+        }
+        int first = Math.max(address - 1, 0) >>> PAGE_BITS;
+        int last = (address + length - 1) >>> PAGE_BITS;
+        for (int page=first; page<=last; page++) {
+            written[m] |= 1L << page;
+        }
+        return written[m];
+    }
+
+    // If the Fx07 (with x) that m just ran at pc on cycle c starts a delay wait loop that won't exit this time round,
+    // the first cycle starting a spin after the delay timer ticks, or never if the timer has stopped. Otherwise c
+    private long delayWait(int m, int x, int pc, long c) {
+        if (pc + 5 >= Memory.SIZE) {
+            return c;
+        }
+        int skip = fetch(m, pc + 2);
+        if ((skip & 0xFF00) != (0x3000 | (x << 8)) || (skip & 0xFF) == delay[m] || fetch(m, pc + 4) != (0x1000 | pc)) {
+            return c;
+        }
+        if (delay[m] == 0) {
+            return Long.MAX_VALUE;
+        }
+        // The tick happens on the first cycle whose time is after delayNext, round up to a whole spin
+        long tick = delayNext[m] / CPU.minClockWaitTime + 1;
+        return c + 3 * Math.max(1, (tick - c + 2) / 3);
+    }
+
+    // Timers tick on the first cycle after their deadline, like Timer.check() run by the CPU's scheduler. Runs m's
+    // timers over cycles first to last, returning the cycle they next tick on
+    private long tickTimers(int m, long first, long last) {
+        for (long c = Math.max(first, delayNext[m] / CPU.minClockWaitTime + 1); delay[m] > 0 && c <= last;
+                c = Math.max(c + 1, delayNext[m] / CPU.minClockWaitTime + 1)) {
+            delay[m]--;
+            delayNext[m] += Timer.timeBetweenUpdates;
+        }
+        for (long c = Math.max(first, soundNext[m] / CPU.minClockWaitTime + 1); sound[m] > 0 && c <= last;
+                c = Math.max(c + 1, soundNext[m] / CPU.minClockWaitTime + 1)) {
+            sound[m]--;
+            soundNext[m] += Timer.timeBetweenUpdates;
+        }
+        return nextTick(m);
+    }
+
+    private long nextTick(int m) {
+        long tick = Long.MAX_VALUE;
+        if (delay[m] > 0) {
+            tick = delayNext[m] / CPU.minClockWaitTime + 1;
+        }
+        if (sound[m] > 0) {
+            tick = Math.min(tick, soundNext[m] / CPU.minClockWaitTime + 1);
+        }
+        return tick;
+    }
+
+    // The CPU would have thrown before counting the instruction
+    private void fail(int m, long c, String error) {
+        stoppedAt[m] = c;
+        errors[m] = error;
+    }
+
+    // Reading machine state
+
+    // Cycles machine has run, like CPU.getCycles()
+    public long getCycles(int machine) {
+        return stoppedAt[machine] >= 0 ? stoppedAt[machine] : cycles[machine];
+    }
+
+    public boolean isStopped(int machine) {
+        return stoppedAt[machine] >= 0;
+    }
+
+    // Halted on Fx0A until a key is held
+    public boolean isWaitingForKey(int machine) {
+        return waitingForKey[machine];
+    }
+
+    // Why machine stopped, null if it's still running or just got stuck
+    public String getError(int machine) {
+        return errors[machine];
+    }
+
+    public int getPC(int machine) {
+        return PC[machine];
+    }
+
+    public int getI(int machine) {
+        return I[machine];
+    }
+
+    public int getV(int machine, int x) {
+        return V[machine * 16 + x] & 0xFF;
+    }
+
+    public int getSP(int machine) {
+        return SP[machine];
+    }
+
+    public int getStack(int machine, int i) {
+        return stack[machine * 16 + i];
+    }
+
+    public int getDelay(int machine) {
+        return delay[machine];
+    }
+
+    public long getDelayNext(int machine) {
+        return delayNext[machine];
+    }
+
+    public int getSound(int machine) {
+        return sound[machine];
+    }
+
+    public long getSoundNext(int machine) {
+        return soundNext[machine];
+    }
+
+    public int getRam(int machine, int address) {
+        return ram[(machine << RAM_BITS) + address] & 0xFF;
+    }
+
+    public long getRow(int machine, int y) {
+        return screen[machine * SCREEN_ROWS + y];
+    }
+
+    // Same as FrameBuffer.hash() of the machine's screen
+    public long frameHash(int machine) {
+        long hash = 0xcbf29ce484222325L;
+        for (int y=0; y<SCREEN_ROWS; y++) {
+            hash ^= getRow(machine, y);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    // Differences between machine and cpu (with screen as its display), or null if they're in the same state
+    String diff(int machine, CPU cpu, FrameBuffer screen) {
+        StringBuilder sb = new StringBuilder();
+        field(sb, "cycles", getCycles(machine), cpu.getCycles());
+        field(sb, "PC", getPC(machine), cpu.PC);
+        field(sb, "I", getI(machine), cpu.I);
+        field(sb, "SP", getSP(machine), cpu.SP);
+        for (int i=0; i<16; i++) {
+            field(sb, "V" + Integer.toHexString(i).toUpperCase(), getV(machine, i), cpu.V[i] & 0xFF);
+            field(sb, "stack[" + i + "]", getStack(machine, i), cpu.stack[i]);
+        }
+        field(sb, "delay", getDelay(machine), cpu.delay.getTimer());
+        field(sb, "delay next tick", getDelayNext(machine), cpu.delay.getNextDecrement());
+        field(sb, "sound", getSound(machine), cpu.sound.getTimer());
+        field(sb, "sound next tick", getSoundNext(machine), cpu.sound.getNextDecrement());
+        field(sb, "screen hash", frameHash(machine), screen.hash());
+        for (int address=0; address<Memory.SIZE; address++) {
+            if (getRam(machine, address) != cpu.ram.get(address)) {
+                field(sb, "ram[" + address + "]", getRam(machine, address), cpu.ram.get(address));
+                break;
+            }
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+    private static void field(StringBuilder sb, String name, long batch, long cpu) {
+        if (batch != cpu) {
+            sb.append(String.format(" %s=%X/%X", name, batch, cpu));
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 3) {
+            System.err.println("Usage: BatchEngine <rom> <machines> <cycles> [INTERPRETER|PREDECODED|JIT]");
+            System.exit(1);
+        }
+        File file = new File(args[0]);
+        RomCatalog catalog = new RomCatalog();
+        RomImage rom = catalog.add(file.getName(), ROMLoader.readRomFromFile(file.getPath()));
+        int count = Integer.parseInt(args[1]);
+        long cycles = Long.parseLong(args[2]);
+        CPU.Engine engine = args.length > 3 ? CPU.Engine.valueOf(args[3]) : CPU.Engine.INTERPRETER;
+
+        // Both sides are timed ROUNDS times from scratch and the best round kept, so neither is measured while the
+        // JVM is still compiling it
+        long cpuWall = Long.MAX_VALUE;
+        long batchWall = Long.MAX_VALUE;
+        BatchEngine batch = null;
+        CPU[] cpus = new CPU[count];
+        HeadlessDisplay[] displays = new HeadlessDisplay[count];
+        for (int round=0; round<ROUNDS; round++) {
+            // Every machine gets its own seed and keys, so they don't all do the same thing
+            batch = new BatchEngine(rom, count);
+            for (int m=0; m<count; m++) {
+                int held = m % 17 == 16 ? 0 : 1 << (m % 17);
+                displays[m] = new HeadlessDisplay();
+                cpus[m] = new CPU(rom.newMemory(), displays[m], new KeyboardInterface() {
+                    @Override
+                    public boolean isPressed(int key) {
+                        return key < 16 && (held & (1 << key)) != 0;
+                    }
+
+                    @Override
+                    public int pollAnyKey() {
+                        return held == 0 ? -1 : Integer.numberOfTrailingZeros(held);
+                    }
+
+                    @Override
+                    public long nextChange(long cycle) {
+                        return Long.MAX_VALUE;
+                    }
+                }, CPU.UNLIMITED);
+                cpus[m].setEngine(engine);
+                cpus[m].setSeed(m);
+                batch.setSeed(m, m);
+                batch.setKeys(m, held);
+            }
+
+            long t0 = System.nanoTime();
+            for (CPU cpu : cpus) {
+                try {
+                    cpu.run(cycles);
+                } catch (RuntimeException e) {
+                    // Stopped where the batch should stop too
+                }
+            }
+            cpuWall = Math.min(cpuWall, System.nanoTime() - t0);
+
+            t0 = System.nanoTime();
+            batch.run(cycles);
+            batchWall = Math.min(batchWall, System.nanoTime() - t0);
+        }
+
+        int mismatches = 0;
+        long total = 0;
+        for (int m=0; m<count; m++) {
+            total += batch.getCycles(m);
+            String diff = batch.diff(m, cpus[m], displays[m].getFrameBuffer());
+            if (diff != null) {
+                mismatches++;
+                if (mismatches <= 10) {
+                    System.out.println("Machine " + m + " differs: " + diff);
+                }
+            }
+        }
+        System.out.println(String.format("%d %s CPUs: %8.2fms %12.0f instr/s", count, engine, cpuWall / 1e6, total * 1e9 / cpuWall));
+        System.out.println(String.format("Batch:    %8.2fms %12.0f instr/s (%.2fx)", batchWall / 1e6, total * 1e9 / batchWall, (double) cpuWall / batchWall));
+        System.out.println(mismatches == 0 ? "All machines match the CPUs" : mismatches + " machines differ from the CPUs");
+    }
+}
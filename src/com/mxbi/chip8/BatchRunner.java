@@ -0,0 +1,230 @@
+package com.mxbi.chip8;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+// Headless entry point: runs every ROM in a directory for a fixed cycle budget, in parallel across all cores
+// Usage: BatchRunner <rom directory> <cycles per ROM> [runs per ROM] [--off-heap] [--engine=INTERPRETER|PREDECODED|JIT]
+//        [--aot-cache=<directory>] [--no-fusion] [--capture=<directory>] [--seed=N] [--batch-engine]
+// Run i of every ROM seeds its random numbers with seed + i, so the frame hashes are reproducible across invocations
+// and engines. With --batch-engine each ROM's runs are the machines of one BatchEngine instead of separate CPUs, and
+// every machine is run by its own task in the pool. Those machines have no keys at all, so a ROM that waits on Fx0A
+// halts there instead of getting HeadlessDisplay's key 0, and its frame hash can differ from the CPUs'
+public class BatchRunner {
+
+    // How each machine in the batch is set up
+    public static class Options {
+        public boolean offHeap = false; // Keep every machine's RAM in direct buffers
+        public CPU.Engine engine = CPU.Engine.INTERPRETER;
+        public File aotCache = null; // Load (or build) ahead-of-time compiled code from here, JIT engine only
+        public boolean fusion = true; // Superinstructions in the PREDECODED engine
+        public File captureDir = null; // Record every frame of each run here, as <rom>.<run>.c8fc (see FrameCapture)
+        public long seed = 0; // Run i of each ROM uses seed + i for Cxkk
+        public boolean batchEngine = false; // Run each ROM's runs as the machines of one BatchEngine
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (String arg : args) {
+                if (arg.equals("--off-heap")) {
+                    options.offHeap = true;
+                } else if (arg.startsWith("--engine=")) {
+                    options.engine = CPU.Engine.valueOf(arg.substring("--engine=".length()));
+                } else if (arg.equals("--no-fusion")) {
+                    options.fusion = false;
+                } else if (arg.startsWith("--aot-cache=")) {
+                    options.aotCache = new File(arg.substring("--aot-cache=".length()));
+                } else if (arg.startsWith("--capture=")) {
+                    options.captureDir = new File(arg.substring("--capture=".length()));
+                } else if (arg.startsWith("--seed=")) {
+                    options.seed = Long.parseLong(arg.substring("--seed=".length()));
+                } else if (arg.equals("--batch-engine")) {
+                    options.batchEngine = true;
+                }
+            }
+            // BatchEngine has its own interpreter and keeps every machine's RAM in one array
+            if (options.batchEngine && (options.offHeap || options.engine != CPU.Engine.INTERPRETER
+                    || options.aotCache != null || options.captureDir != null)) {
+                System.err.println("--off-heap, --engine, --aot-cache and --capture don't apply to --batch-engine, "
+                        + "ignoring them");
+                options.offHeap = false;
+                options.engine = CPU.Engine.INTERPRETER;
+                options.aotCache = null;
+                options.captureDir = null;
+            }
+            // The JIT is experimental, so compiled code never switches it on by itself
+            if (options.aotCache != null && options.engine != CPU.Engine.JIT) {
+                System.err.println("--aot-cache only applies to --engine=JIT, ignoring it");
+                options.aotCache = null;
+            }
+            return options;
+        }
+    }
+
+    public static class Result {
+        public final String rom;
+        public final long seed;
+        public final long frameHash;
+        public final long cycles;
+        public final long wallNanos;
+        public final String error; // null if the run finished cleanly
+
+        Result(String rom, long seed, long frameHash, long cycles, long wallNanos, String error) {
+            this.rom = rom;
+            this.seed = seed;
+            this.frameHash = frameHash;
+            this.cycles = cycles;
+            this.wallNanos = wallNanos;
+            this.error = error;
+        }
+
+        public double instructionsPerSecond() {
+            return wallNanos > 0 ? cycles * 1e9 / wallNanos : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-24s seed=%-4d hash=%016X cycles=%-10d wall=%8.2fms %12.0f instr/s%s",
+                    rom, seed, frameHash, cycles, wallNanos / 1e6, instructionsPerSecond(),
+                    error == null ? "" : "  ERROR: " + error);
+        }
+    }
+
+    public static Result runRom(String name, byte[] rom, long maxCycles, Options options) {
+        Memory ram = options.offHeap ? Memory.direct() : Memory.heap();
+        ram.write(ROMLoader.PROGRAM_START, rom, 0, rom.length);
+        return run(name, 0, ram, maxCycles, options);
+    }
+
+    public static Result runRom(String name, RomImage rom, long maxCycles, Options options) {
+        return runRom(name, rom, maxCycles, options, 0);
+    }
+
+    // On the heap, RAM starts out as the image itself and is only copied once the program writes to it
+    public static Result runRom(String name, RomImage rom, long maxCycles, Options options, int run) {
+        Memory ram;
+        if (options.offHeap) {
+            ram = Memory.direct();
+            ram.write(ROMLoader.PROGRAM_START, rom.program, 0, rom.length());
+        } else {
+            ram = rom.newMemory();
+        }
+        return run(name, run, ram, maxCycles, options);
+    }
+
+    private static Result run(String name, int run, Memory ram, long maxCycles, Options options) {
+        HeadlessDisplay display = new HeadlessDisplay();
+        CPU cpu = new CPU(ram, display, display, CPU.UNLIMITED);
+        cpu.setEngine(options.engine);
+        cpu.setFusion(options.fusion);
+        long seed = options.seed + run;
+        cpu.setSeed(seed);
+
+        String error = null;
+        long t0 = System.nanoTime();
+        FrameCapture capture = null;
+        try {
+            if (options.captureDir != null) {
+                // Runs are unthrottled, so dropping frames would lose nearly all of them. The CPU waits instead
+                capture = new FrameCapture(new File(options.captureDir, name + "." + run + ".c8fc"), FrameCapture.Overflow.BLOCK);
+                cpu.setCapture(capture);
+            }
+            cpu.run(maxCycles);
+        } catch (RuntimeException | InterruptedException | IOException e) {
+            error = e.toString();
+        } finally {
+            if (capture != null) {
+                try {
+                    capture.close();
+                } catch (IOException e) {
+                    error = e.toString();
+                }
+            }
+        }
+        long wall = System.nanoTime() - t0;
+
+        return new Result(name, seed, display.frameHash(), cpu.getCycles(), wall, error);
+    }
+
+    // Runs machine m of batch, which no other task touches, so the pool can run every machine of a batch at once
+    private static Result runMachine(String name, BatchEngine batch, int m, long maxCycles, Options options) {
+        long t0 = System.nanoTime();
+        batch.run(m, m + 1, maxCycles);
+        long wall = System.nanoTime() - t0;
+        return new Result(name, options.seed + m, batch.frameHash(m), batch.getCycles(m), wall, batch.getError(m));
+    }
+
+    public static List<Result> runAll(File romDir, long maxCycles, int runsPerRom, int threads, Options options) throws IOException {
+        return runAll(RomCatalog.scan(romDir), maxCycles, runsPerRom, threads, options);
+    }
+
+    public static List<Result> runAll(RomCatalog catalog, long maxCycles, int runsPerRom, int threads, Options options) throws IOException {
+        if (options.captureDir != null) {
+            Files.createDirectories(options.captureDir.toPath());
+        }
+        if (options.aotCache != null) {
+            for (RomImage rom : catalog.images()) {
+                AotCompiler.loadOrCompile(options.aotCache, rom.program);
+            }
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        List<Future<Result>> futures = new ArrayList<>();
+        for (String name : catalog.names()) {
+            RomImage rom = catalog.byName(name);
+            BatchEngine batch = options.batchEngine ? new BatchEngine(rom, runsPerRom) : null;
+            for (int i=0; i<runsPerRom; i++) {
+                int run = i;
+                if (batch != null) {
+                    batch.setSeed(run, options.seed + run);
+                    futures.add(pool.submit(() -> runMachine(name, batch, run, maxCycles, options)));
+                } else {
+                    futures.add(pool.submit(() -> runRom(name, rom, maxCycles, options, run)));
+                }
+            }
+        }
+
+        List<Result> results = new ArrayList<>();
+        for (Future<Result> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (Exception e) {
+                throw new IllegalStateException("Batch run failed", e);
+            }
+        }
+        pool.shutdown();
+        return results;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Options options = Options.parse(args);
+        args = Arrays.stream(args).filter(arg -> !arg.startsWith("--")).toArray(String[]::new);
+
+        if (args.length < 2) {
+            System.err.println("Usage: BatchRunner <rom directory> <cycles per ROM> [runs per ROM] [--off-heap] "
+                    + "[--engine=INTERPRETER|PREDECODED|JIT] [--aot-cache=<directory>] [--no-fusion] [--capture=<directory>] [--seed=N] [--batch-engine]");
+            System.exit(1);
+        }
+        File romDir = new File(args[0]);
+        long maxCycles = Long.parseLong(args[1]);
+        int runsPerRom = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        long t0 = System.nanoTime();
+        List<Result> results = runAll(romDir, maxCycles, runsPerRom, threads, options);
+        long wall = System.nanoTime() - t0;
+
+        long totalCycles = 0;
+        for (Result result : results) {
+            System.out.println(result);
+            totalCycles += result.cycles;
+        }
+        System.out.println(String.format("%d runs on %d threads in %.2fms, %.0f instr/s aggregate, seed %d",
+                results.size(), threads, wall / 1e6, totalCycles * 1e9 / wall, options.seed));
+    }
+}
@@ -0,0 +1,568 @@
+package com.mxbi.chip8;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.mxbi.chip8.ClassWriter.*;
+
+// Turns basic blocks into JVM classes: writes the bytecode for each block directly (see ClassWriter) and loads it as
+// a hidden class in this package, so it can work on the CPU's package-private state directly. That takes
+// microseconds, so hot blocks are compiled right away on the CPU's own thread, and compiled code is shared by every
+// CPU running the same block.
+public class BlockCompiler {
+    // Compiled code by JitBlock.key, shared between all CPUs (and runs of the same ROM). Entries go when a CPU
+    // overwrites the block (see evict()), so self-modifying code doesn't pile up here
+    private static final Map<String, CompiledBlock> cache = new ConcurrentHashMap<>();
+
+    // Bump whenever generated code changes shape, so class files cached on disk by AotCompiler get recompiled
+    static final int CODEGEN_VERSION = 6;
+
+    static CompiledBlock cached(String key) {
+        return cache.get(key);
+    }
+
+    // Make already compiled code available to every CPU, see AotCompiler
+    static void preload(String key, CompiledBlock code) {
+        cache.put(key, code);
+    }
+
+    // Compile the block (or pick up the code another CPU compiled for it). If that fails it stays interpreted
+    static void submit(JitBlock block) {
+        block.compiled = cache.computeIfAbsent(block.key,
+                key -> define(generate(className(key), block.start, block.instrs)));
+    }
+
+    // A CPU overwrote the code of a compiled block. CPUs still holding the JitBlock keep using it until they
+    // invalidate it themselves, anyone discovering the block afresh compiles it again
+    static void evict(String key, CompiledBlock code) {
+        cache.remove(key, code);
+    }
+
+    static String className(String key) {
+        return "JitBlock_" + key;
+    }
+
+    // Load generated bytecode as a hidden class next to CPU. Hidden classes get unloaded once nothing refers to
+    // them, which is once they've been evicted from the cache and every JitBlock using them has been dropped.
+    static CompiledBlock define(byte[] bytecode) {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytecode, true);
+            return (CompiledBlock) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+        } catch (Throwable e) {
+            System.err.println("JIT: failed to load compiled block: " + e);
+            return null;
+        }
+    }
+
+    // CODE GENERATION
+    // Every case here has to match the corresponding op_ method in CPU exactly, including the order VF is written in
+
+    private static final String PACKAGE = "com/mxbi/chip8/";
+    private static final String CPU_CLASS = PACKAGE + "CPU";
+    private static final String MEMORY = PACKAGE + "Memory";
+    private static final String DISPLAY = PACKAGE + "DisplayInterface";
+    private static final String KEYBOARD = PACKAGE + "KeyboardInterface";
+    private static final String DELAY_TIMER = PACKAGE + "DelayTimer";
+
+    // Locals of the generated run(CPU cpu, long time, int budget): the arguments, then cpu.V and cpu.ram, the
+    // instructions run by earlier passes round a loop, cpu.chainOffset on entry, and scratch
+    private static final int CPU_ARG = 1, TIME = 2, BUDGET = 4, V = 5, RAM = 6, PASSES = 7, BASE = 8, TEMP = 9;
+    private static final int MAX_STACK = 12;
+
+    // Class file for a block. The code runs the instructions in order. A skip that skips leaves the block there (a
+    // side exit), otherwise the block carries on with the next instruction. A block that ends by jumping back to its
+    // own start goes round again inside the class while there's budget for another whole pass
+    static byte[] generate(String className, int start, int[] instrs) {
+        String name = PACKAGE + className;
+        ClassWriter w = new ClassWriter(name, PACKAGE + "CompiledBlock");
+        w.method("run", "(L" + CPU_CLASS + ";JI)I", MAX_STACK,
+                name, CPU_CLASS, LONG, INT, "[B", MEMORY, INT, INT, INT);
+
+        w.local(ALOAD, CPU_ARG);
+        w.field(GETFIELD, CPU_CLASS, "V", "[B");
+        w.local(ASTORE, V);
+        w.local(ALOAD, CPU_ARG);
+        w.field(GETFIELD, CPU_CLASS, "ram", "L" + MEMORY + ";");
+        w.local(ASTORE, RAM);
+        w.pushInt(0);
+        w.local(ISTORE, PASSES);
+        w.local(ALOAD, CPU_ARG);
+        w.field(GETFIELD, CPU_CLASS, "chainOffset", "I");
+        w.local(ISTORE, BASE);
+        w.pushInt(0);
+        w.local(ISTORE, TEMP);
+
+        boolean loops = JitBlock.loopsBack(start, instrs);
+        int length = instrs.length;
+        Label top = w.label();
+        if (loops) {
+            w.place(top);
+        }
+
+        int address = start;
+        boolean terminated = false;
+        for (int i=0; i<(loops ? length - 1 : length); i++) {
+            terminated = generateInstruction(w, instrs[i], address, i);
+            address += 2;
+        }
+
+        if (loops) {
+            // passes += length; if (passes + length <= budget) go round again
+            w.local(ILOAD, PASSES);
+            w.pushInt(length);
+            w.op(IADD);
+            w.local(ISTORE, PASSES);
+            w.local(ILOAD, PASSES);
+            w.pushInt(length);
+            w.op(IADD);
+            w.local(ILOAD, BUDGET);
+            w.jump(IF_ICMPLE, top);
+            setPC(w, start);
+            w.local(ILOAD, PASSES);
+            w.op(IRETURN);
+        } else {
+            if (!terminated) {
+                setPC(w, address);
+            }
+            returnExecuted(w, length);
+        }
+        return w.toBytes();
+    }
+
+    // Append code for one instruction, the index'th of the block, returns true if it set PC itself (terminators)
+    private static boolean generateInstruction(ClassWriter w, int instr, int address, int index) {
+        int x = CPU.getx(instr);
+        int y = CPU.gety(instr);
+        int kk = CPU.getk(instr);
+        int nnn = CPU.getn(instr);
+
+        switch ((instr & 0xF000) >>> 12) {
+            case 0x0:
+                if (instr == 0x00E0) {
+                    w.local(ALOAD, CPU_ARG);
+                    w.field(GETFIELD, CPU_CLASS, "display", "L" + DISPLAY + ";");
+                    w.invoke(INVOKEINTERFACE, DISPLAY, "clear", "()V");
+                    return false;
+                }
+                // 00EE
+                setPC(w, address);
+                setChainOffset(w, index);
+                Label nonEmpty = w.label();
+                loadCpu(w, "SP", "B");
+                w.jump(IFGE, nonEmpty);
+                w.newObject("java/lang/IllegalStateException");
+                w.op(DUP);
+                w.pushString("0x00EE: Tried to pop empty stack");
+                w.invoke(INVOKESPECIAL, "java/lang/IllegalStateException", "<init>", "(Ljava/lang/String;)V");
+                w.op(ATHROW);
+                w.place(nonEmpty);
+                // PC = stack[SP] + 2
+                w.local(ALOAD, CPU_ARG);
+                loadCpu(w, "stack", "[S");
+                loadCpu(w, "SP", "B");
+                w.op(SALOAD);
+                w.pushInt(2);
+                w.op(IADD);
+                w.op(I2S);
+                w.field(PUTFIELD, CPU_CLASS, "PC", "S");
+                // SP -= 1
+                w.local(ALOAD, CPU_ARG);
+                loadCpu(w, "SP", "B");
+                w.pushInt(1);
+                w.op(ISUB);
+                w.op(I2B);
+                w.field(PUTFIELD, CPU_CLASS, "SP", "B");
+                return true;
+            case 0x1:
+                setPC(w, nnn);
+                return true;
+            case 0x2:
+                setPC(w, address);
+                setChainOffset(w, index);
+                // SP += 1
+                w.local(ALOAD, CPU_ARG);
+                loadCpu(w, "SP", "B");
+                w.pushInt(1);
+                w.op(IADD);
+                w.op(I2B);
+                w.field(PUTFIELD, CPU_CLASS, "SP", "B");
+                // stack[SP] = address
+                loadCpu(w, "stack", "[S");
+                loadCpu(w, "SP", "B");
+                w.pushInt(address);
+                w.op(SASTORE);
+                setPC(w, nnn);
+                return true;
+            case 0x3:
+                loadUnsigned(w, x);
+                w.pushInt(kk);
+                return skip(w, IF_ICMPNE, address, index);
+            case 0x4:
+                loadUnsigned(w, x);
+                w.pushInt(kk);
+                return skip(w, IF_ICMPEQ, address, index);
+            case 0x5:
+                loadSigned(w, x);
+                loadSigned(w, y);
+                return skip(w, IF_ICMPNE, address, index);
+            case 0x9:
+                loadSigned(w, x);
+                loadSigned(w, y);
+                return skip(w, IF_ICMPEQ, address, index);
+            case 0x6:
+                storeStart(w, x);
+                w.pushInt(kk);
+                w.op(BASTORE);
+                return false;
+            case 0x7:
+                storeStart(w, x);
+                loadUnsigned(w, x);
+                w.pushInt(kk);
+                w.op(IADD);
+                w.op(BASTORE);
+                return false;
+            case 0x8: switch (instr & 0x000F) {
+                case 0x0:
+                    storeStart(w, x);
+                    loadSigned(w, y);
+                    w.op(BASTORE);
+                    return false;
+                case 0x1: return logic(w, x, y, IOR);
+                case 0x2: return logic(w, x, y, IAND);
+                case 0x3: return logic(w, x, y, IXOR);
+                case 0x4:
+                    // sum = V[x] + V[y]; V[F] = sum > 0xFF; V[x] = sum
+                    loadUnsigned(w, x);
+                    loadUnsigned(w, y);
+                    w.op(IADD);
+                    w.local(ISTORE, TEMP);
+                    storeStart(w, 0xF);
+                    w.local(ILOAD, TEMP);
+                    w.pushInt(8);
+                    w.op(IUSHR);
+                    w.op(BASTORE);
+                    storeTemp(w, x);
+                    return false;
+                case 0x5:
+                    loadUnsigned(w, x);
+                    loadUnsigned(w, y);
+                    return subtract(w, x);
+                case 0x6:
+                    // V[F] = V[x] & 1; V[x] = V[x] >>> 1
+                    storeStart(w, 0xF);
+                    loadUnsigned(w, x);
+                    w.pushInt(1);
+                    w.op(IAND);
+                    w.op(BASTORE);
+                    storeStart(w, x);
+                    loadUnsigned(w, x);
+                    w.pushInt(1);
+                    w.op(IUSHR);
+                    w.op(BASTORE);
+                    return false;
+                case 0x7:
+                    loadUnsigned(w, y);
+                    loadUnsigned(w, x);
+                    return subtract(w, x);
+                case 0xE:
+                    // V[F] = V[x] >> 7; V[x] = V[x] << 1
+                    storeStart(w, 0xF);
+                    loadUnsigned(w, x);
+                    w.pushInt(7);
+                    w.op(ISHR);
+                    w.op(BASTORE);
+                    storeStart(w, x);
+                    loadUnsigned(w, x);
+                    w.pushInt(1);
+                    w.op(ISHL);
+                    w.op(BASTORE);
+                    return false;
+            }
+            break;
+            case 0xA:
+                w.local(ALOAD, CPU_ARG);
+                w.pushInt(nnn);
+                w.field(PUTFIELD, CPU_CLASS, "I", "S");
+                return false;
+            case 0xB:
+                w.local(ALOAD, CPU_ARG);
+                w.pushInt(nnn);
+                loadUnsigned(w, 0);
+                w.op(IADD);
+                w.op(I2S);
+                w.field(PUTFIELD, CPU_CLASS, "PC", "S");
+                return true;
+            case 0xC:
+                storeStart(w, x);
+                w.pushInt(kk);
+                w.local(ALOAD, CPU_ARG);
+                w.invoke(INVOKEVIRTUAL, CPU_CLASS, "randomByte", "()I");
+                w.op(IAND);
+                w.op(BASTORE);
+                return false;
+            case 0xD:
+                // V[F] = display.draw(ram, I, n, V[x], V[y])
+                setChainOffset(w, index);
+                storeStart(w, 0xF);
+                loadCpu(w, "display", "L" + DISPLAY + ";");
+                w.local(ALOAD, RAM);
+                loadCpu(w, "I", "S");
+                w.pushInt(instr & 0x000F);
+                loadUnsigned(w, x);
+                loadUnsigned(w, y);
+                w.invoke(INVOKEINTERFACE, DISPLAY, "draw", "(L" + MEMORY + ";IIII)Z");
+                w.op(BASTORE);
+                setPC(w, address + 2);
+                return true;
+            case 0xE: switch (kk) {
+                case 0x9E:
+                    isPressed(w, x, index);
+                    return skip(w, IFEQ, address, index);
+                case 0xA1:
+                    isPressed(w, x, index);
+                    return skip(w, IFNE, address, index);
+            }
+            break;
+            case 0xF: switch (kk) {
+                case 0x07:
+                    storeStart(w, x);
+                    loadCpu(w, "delay", "L" + DELAY_TIMER + ";");
+                    w.invoke(INVOKEVIRTUAL, DELAY_TIMER, "getTimer", "()I");
+                    w.op(BASTORE);
+                    return false;
+                case 0x0A:
+                    // Leaves PC on the Fx0A if there's no key yet, the CPU halts until there is
+                    setPC(w, address);
+                    setChainOffset(w, index);
+                    w.local(ALOAD, CPU_ARG);
+                    w.pushInt(x);
+                    w.invoke(INVOKEVIRTUAL, CPU_CLASS, "readKey", "(I)V");
+                    return true;
+                case 0x15:
+                    setTimer(w, x, index, "setDelayTimer");
+                    setPC(w, address + 2);
+                    return true;
+                case 0x18:
+                    setTimer(w, x, index, "setSoundTimer");
+                    setPC(w, address + 2);
+                    return true;
+                case 0x1E: {
+                    // I += V[x]; if (I > 0xFFF) { I %= 0x1000; V[F] = 1; } else { V[F] = 0; }
+                    w.local(ALOAD, CPU_ARG);
+                    loadCpu(w, "I", "S");
+                    loadUnsigned(w, x);
+                    w.op(IADD);
+                    w.op(I2S);
+                    w.field(PUTFIELD, CPU_CLASS, "I", "S");
+                    Label inRange = w.label();
+                    Label done = w.label();
+                    loadCpu(w, "I", "S");
+                    w.pushInt(0xFFF);
+                    w.jump(IF_ICMPLE, inRange);
+                    w.local(ALOAD, CPU_ARG);
+                    loadCpu(w, "I", "S");
+                    w.pushInt(0x1000);
+                    w.op(IREM);
+                    w.op(I2S);
+                    w.field(PUTFIELD, CPU_CLASS, "I", "S");
+                    storeStart(w, 0xF);
+                    w.pushInt(1);
+                    w.op(BASTORE);
+                    w.jump(GOTO, done);
+                    w.place(inRange);
+                    storeStart(w, 0xF);
+                    w.pushInt(0);
+                    w.op(BASTORE);
+                    w.place(done);
+                    return false;
+                }
+                case 0x29:
+                    w.local(ALOAD, CPU_ARG);
+                    w.pushInt(5);
+                    loadUnsigned(w, x);
+                    w.op(IMUL);
+                    w.op(I2S);
+                    w.field(PUTFIELD, CPU_CLASS, "I", "S");
+                    return false;
+                case 0x65:
+                    setPC(w, address);
+                    setChainOffset(w, index);
+                    w.local(ALOAD, RAM);
+                    loadCpu(w, "I", "S");
+                    w.local(ALOAD, V);
+                    w.pushInt(0);
+                    w.pushInt(x + 1);
+                    w.invoke(INVOKEINTERFACE, MEMORY, "read", "(I[BII)V");
+                    return false;
+                case 0x33:
+                    setPC(w, address);
+                    setChainOffset(w, index);
+                    loadUnsigned(w, x);
+                    w.local(ISTORE, TEMP);
+                    bcdDigit(w, 0, 100, 10);
+                    bcdDigit(w, 1, 10, 10);
+                    bcdDigit(w, 2, 1, 10);
+                    invalidate(w, 3);
+                    setPC(w, address + 2);
+                    return true;
+                case 0x55:
+                    setPC(w, address);
+                    setChainOffset(w, index);
+                    w.local(ALOAD, RAM);
+                    loadCpu(w, "I", "S");
+                    w.local(ALOAD, V);
+                    w.pushInt(0);
+                    w.pushInt(x + 1);
+                    w.invoke(INVOKEINTERFACE, MEMORY, "write", "(I[BII)V");
+                    invalidate(w, x + 1);
+                    setPC(w, address + 2);
+                    return true;
+            }
+            break;
+        }
+        throw new IllegalArgumentException("Can't compile instruction " + CPU.instrToString(instr));
+    }
+
+    // The two values on the stack have been pushed, branch is the comparison under which the instruction doesn't
+    // skip. When it does, PC goes past the next instruction and the block exits
+    private static boolean skip(ClassWriter w, int branch, int address, int index) {
+        Label next = w.label();
+        w.jump(branch, next);
+        setPC(w, address + 4);
+        w.local(ILOAD, PASSES);
+        w.pushInt(index + 1);
+        w.op(IADD);
+        w.op(IRETURN);
+        w.place(next);
+        return false;
+    }
+
+    // keyboard.isPressed(V[x]), which reads the keypad at the instruction's own cycle
+    private static void isPressed(ClassWriter w, int x, int index) {
+        setChainOffset(w, index);
+        loadCpu(w, "keyboard", "L" + KEYBOARD + ";");
+        loadUnsigned(w, x);
+        w.invoke(INVOKEINTERFACE, KEYBOARD, "isPressed", "(I)Z");
+    }
+
+    // cpu.chainOffset = base + passes + index, for peripherals reading the instruction's cycle. Also set before
+    // anything that can throw (the stack, ram accesses through I), so CPU.executeCompiled() can count the
+    // instructions that ran before it
+    private static void setChainOffset(ClassWriter w, int index) {
+        w.local(ALOAD, CPU_ARG);
+        w.local(ILOAD, BASE);
+        w.local(ILOAD, PASSES);
+        w.op(IADD);
+        w.pushInt(index);
+        w.op(IADD);
+        w.field(PUTFIELD, CPU_CLASS, "chainOffset", "I");
+    }
+
+    // cpu.<setter>(V[x], time + (passes + index) * minClockWaitTime)
+    private static void setTimer(ClassWriter w, int x, int index, String setter) {
+        w.local(ALOAD, CPU_ARG);
+        loadUnsigned(w, x);
+        w.local(LLOAD, TIME);
+        w.local(ILOAD, PASSES);
+        w.pushInt(index);
+        w.op(IADD);
+        w.op(I2L);
+        w.pushLong(CPU.minClockWaitTime);
+        w.op(LMUL);
+        w.op(LADD);
+        w.invoke(INVOKEVIRTUAL, CPU_CLASS, setter, "(IJ)V");
+    }
+
+    // V[x] = V[x] <op> V[y]
+    private static boolean logic(ClassWriter w, int x, int y, int op) {
+        storeStart(w, x);
+        loadSigned(w, x);
+        loadSigned(w, y);
+        w.op(op);
+        w.op(BASTORE);
+        return false;
+    }
+
+    // The two operands are on the stack: diff = a - b; V[F] = diff >= 0; V[x] = diff
+    private static boolean subtract(ClassWriter w, int x) {
+        w.op(ISUB);
+        w.local(ISTORE, TEMP);
+        storeStart(w, 0xF);
+        w.local(ILOAD, TEMP);
+        w.pushInt(-1);
+        w.op(IXOR);
+        w.pushInt(31);
+        w.op(IUSHR);
+        w.op(BASTORE);
+        storeTemp(w, x);
+        return false;
+    }
+
+    // ram.set(I + offset, temp / divisor % modulus)
+    private static void bcdDigit(ClassWriter w, int offset, int divisor, int modulus) {
+        w.local(ALOAD, RAM);
+        loadCpu(w, "I", "S");
+        w.pushInt(offset);
+        w.op(IADD);
+        w.local(ILOAD, TEMP);
+        w.pushInt(divisor);
+        w.op(IDIV);
+        w.pushInt(modulus);
+        w.op(IREM);
+        w.invoke(INVOKEINTERFACE, MEMORY, "set", "(II)V");
+    }
+
+    // cpu.invalidate(I, length)
+    private static void invalidate(ClassWriter w, int length) {
+        w.local(ALOAD, CPU_ARG);
+        loadCpu(w, "I", "S");
+        w.pushInt(length);
+        w.invoke(INVOKEVIRTUAL, CPU_CLASS, "invalidate", "(II)V");
+    }
+
+    private static void setPC(ClassWriter w, int value) {
+        w.local(ALOAD, CPU_ARG);
+        w.pushInt(value);
+        w.field(PUTFIELD, CPU_CLASS, "PC", "S");
+    }
+
+    // return passes + executed
+    private static void returnExecuted(ClassWriter w, int executed) {
+        w.local(ILOAD, PASSES);
+        w.pushInt(executed);
+        w.op(IADD);
+        w.op(IRETURN);
+    }
+
+    private static void loadCpu(ClassWriter w, String field, String descriptor) {
+        w.local(ALOAD, CPU_ARG);
+        w.field(GETFIELD, CPU_CLASS, field, descriptor);
+    }
+
+    private static void loadSigned(ClassWriter w, int x) {
+        w.local(ALOAD, V);
+        w.pushInt(x);
+        w.op(BALOAD);
+    }
+
+    private static void loadUnsigned(ClassWriter w, int x) {
+        loadSigned(w, x);
+        w.pushInt(0xFF);
+        w.op(IAND);
+    }
+
+    // First half of V[x] = value: push the array and index, the value goes on top, then BASTORE
+    private static void storeStart(ClassWriter w, int x) {
+        w.local(ALOAD, V);
+        w.pushInt(x);
+    }
+
+    // V[x] = temp
+    private static void storeTemp(ClassWriter w, int x) {
+        storeStart(w, x);
+        w.local(ILOAD, TEMP);
+        w.op(BASTORE);
+    }
+}
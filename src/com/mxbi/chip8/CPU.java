@@ -1,110 +1,522 @@
 package com.mxbi.chip8;
 
 import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
 
 public class CPU {
 	public static final int cpu_freq = 512;
-	private static final long minClockWaitTime = (long) (1e9 / cpu_freq);
-	private long nextClockTime = System.nanoTime();
+	static final long minClockWaitTime = (long) (1e9 / cpu_freq);
+
+	// Speed multiplier relative to cpu_freq. UNLIMITED runs as fast as the host allows (turbo)
+	public static final double UNLIMITED = Double.POSITIVE_INFINITY;
+	private final double speed;
+
+	// How instructions are dispatched. INTERPRETER is the plain switch in execute(), PREDECODED goes through a
+	// cache of decoded instructions (see decode()), JIT also runs hot basic blocks as compiled classes (see Jit). The JIT
+	// is experimental: it hasn't shown a measured gain over the interpreter, so it only runs when asked for. Neither
+	// has PREDECODED yet, so INTERPRETER stays the default
+	public enum Engine { INTERPRETER, PREDECODED, JIT }
+	private Engine engine = Engine.INTERPRETER;
+
+	// Hex digit sprites, loaded at address 0 (Fx29 points I at them)
+	static final byte[] FONT = toBytes(
+			0xF0, 0x90, 0x90, 0x90, 0xF0, // 0
+			0x20, 0x60, 0x20, 0x20, 0x70, // 1
+			0xF0, 0x10, 0xF0, 0x80, 0xF0, // 2
+			0xF0, 0x10, 0xF0, 0x10, 0xF0, // 3
+			0x90, 0x90, 0xF0, 0x10, 0x10, // 4
+			0xF0, 0x80, 0xF0, 0x10, 0xF0, // 5
+			0xF0, 0x80, 0xF0, 0x90, 0xF0, // 6
+			0xF0, 0x10, 0x20, 0x40, 0x40, // 7
+			0xF0, 0x90, 0xF0, 0x90, 0xF0, // 8
+			0xF0, 0x90, 0xF0, 0x10, 0xF0, // 9
+			0xF0, 0x90, 0xF0, 0x90, 0x90, // A
+			0xE0, 0x90, 0xE0, 0x90, 0xE0, // B
+			0xF0, 0x80, 0x80, 0x80, 0xF0, // C
+			0xE0, 0x90, 0x90, 0x90, 0xE0, // D
+			0xF0, 0x80, 0xF0, 0x80, 0xF0, // E
+			0xF0, 0x80, 0xF0, 0x80, 0x80  // F
+	);
+
+	// Number of instructions executed so far. Timers and the display are driven off this (emulated time),
+	// so they stay correct relative to the program no matter how fast we actually run
+	private long cycles = 0;
+	long emulatedTime = 0;
+
+	// Sustained instructions per second, measured against the wall clock
+	private static final long speedReportInterval = 1000000000L;
+	private double instructionsPerSecond = 0;
 
 	// Initialise memory and registers
-	// We unfortunately have to wasteful and use short instead of byte here to allow for up to 0xFF representation
-	// Since Java has no unsigned primitives
-	// Throughout this project, we use short for storing 8-bit bytes, and int for storing 16-bit shorts *sigh*
-	private short[] ram = new short[4096]; // Main memory
-	private short PC = 0x200; // Program counter
+	// Memory and V are stored as real bytes, always read them through the unsigned accessors (ram.get(), v())
+	// Machine state is package-private so compiled blocks (see BlockCompiler) can work on it directly
+	final Memory ram; // Main memory
+	short PC = ROMLoader.PROGRAM_START; // Program counter
 
-	private short[] V = new short[16]; // 8-bit GP registers
+	final byte[] V = new byte[16]; // 8-bit GP registers
 
-	private short I; // 16 bit register
+	// Decoded instruction for every address, filled lazily and invalidated when the program writes to ram
+	private final DecodedOp[] decoded = new DecodedOp[Memory.SIZE];
+
+	// Superinstruction starting at every address (FusedOp.NONE if there isn't one), same lifecycle as decoded
+	private final FusedOp[] fused = new FusedOp[Memory.SIZE];
+	private boolean fusion = true;
+	// A delay wait loop spins at most this many times in one step, so frames still get drawn regularly
+	private static final int maxDelayWaitSpins = 256;
+
+	short I; // 16 bit register
 
 	// Execution stack
-	private short[] stack = new short[16];
-	private byte SP = 0x0;
+	final short[] stack = new short[16];
+	byte SP = 0x0;
+
+	// Dynamic recompiler state, only used by the JIT engine
+	private final Jit jit;
+	private boolean atBlockLeader = true; // Whether PC is at the start of a basic block
+	private int stepCycles = 1; // Instructions run by the last executeDecoded(), executeFused() or executeCompiled()
+	int chainOffset = 0; // Instructions between cycles and the one running now, inside a chain of compiled blocks
+
+	// Cxkk's random numbers, from a per-CPU generator so runs with the same seed (and input) are reproducible
+	private long seed;
+	long randomState;
+
+	// Set by Fx0A when no key is pressed. The CPU halts (PC stays on the Fx0A) until a key comes in, while timers and
+	// frames keep going. The thread running run() parks in the meantime, and key presses wake it up
+	private boolean waitingForKey = false;
+	private volatile Thread runThread;
+
+	// Per-frame snapshots for stepping backwards, null unless enabled with setRewind()
+	private Rewind rewind;
+	private boolean stepBackDue = false;
+
+	// Records every instruction run, null unless enabled with setTracer()
+	private Tracer tracer;
+
+	// Runtime counters and histograms, null unless enabled with setMetrics()
+	private Metrics metrics;
+
+	// Gets a copy of every frame, null unless enabled with setCapture()
+	private FrameCapture capture;
 
 	// 32x64 monochrome display
-	private DisplayInterface display;
-	private KeyboardInterface keyboard;
+	final DisplayInterface display;
+	final KeyboardInterface keyboard;
 
 	// Timers
-	private DelayTimer delay = new DelayTimer();
-	private SoundTimer sound = new SoundTimer();
+	final DelayTimer delay = new DelayTimer();
+	final SoundTimer sound = new SoundTimer();
 
-	CPU(short[] program, DisplayInterface display, KeyboardInterface keyboard) {
-		this.display = display;
-		this.keyboard = keyboard;
+	// Timer ticks and frames are events at emulated cycle counts, see Scheduler
+	private final Scheduler scheduler = new Scheduler();
+	private final int frameEvent, delayEvent, soundEvent;
+	long nextFrameTime = 0; // Emulated time of the next frame
 
-		int progload = 0x200; // Pointer to load the program at
-		for (short b : program) {
-			ram[progload] = b;
-			progload++;
-		}
+	CPU(byte[] program, DisplayInterface display, KeyboardInterface keyboard) {
+		this(program, display, keyboard, 1.0);
+	}
 
-		short[] charmap = {
-				0xF0, 0x90, 0x90, 0x90, 0xF0, // 0
-				0x20, 0x60, 0x20, 0x20, 0x70, // 1
-				0xF0, 0x10, 0xF0, 0x80, 0xF0, // 2
-				0xF0, 0x10, 0xF0, 0x10, 0xF0, // 3
-				0x90, 0x90, 0xF0, 0x10, 0x10, // 4
-				0xF0, 0x80, 0xF0, 0x10, 0xF0, // 5
-				0xF0, 0x80, 0xF0, 0x90, 0xF0, // 6
-				0xF0, 0x10, 0x20, 0x40, 0x40, // 7
-				0xF0, 0x90, 0xF0, 0x90, 0xF0, // 8
-				0xF0, 0x90, 0xF0, 0x10, 0xF0, // 9
-				0xF0, 0x90, 0xF0, 0x90, 0x90, // A
-				0xE0, 0x90, 0xE0, 0x90, 0xE0, // B
-				0xF0, 0x80, 0x80, 0x80, 0xF0, // C
-				0xE0, 0x90, 0x90, 0x90, 0xE0, // D
-				0xF0, 0x80, 0xF0, 0x80, 0xF0, // E
-				0xF0, 0x80, 0xF0, 0x80, 0x80  // F
-		};
+	CPU(byte[] program, DisplayInterface display, KeyboardInterface keyboard, double speed) {
+		this(Memory.heap(), display, keyboard, speed);
+		ram.write(ROMLoader.PROGRAM_START, program, 0, program.length);
+	}
 
-		for (int i=0; i<charmap.length; i++) {
-			ram[i] = charmap[i];
+	// ram should already hold the program at 0x200 (see ROMLoader.loadRomFromFile), the font is loaded here
+	CPU(Memory ram, DisplayInterface display, KeyboardInterface keyboard, double speed) {
+		if (!(speed > 0)) {
+			throw new IllegalArgumentException("Speed multiplier must be positive, got " + speed);
 		}
+		this.ram = ram;
+		this.jit = new Jit(ram);
+		this.display = display;
+		this.keyboard = keyboard;
+		this.speed = speed;
+		keyboard.setKeyListener(() -> LockSupport.unpark(runThread));
+		setSeed(ThreadLocalRandom.current().nextLong());
+
+		// Frames go first so rewind snapshots are taken before a timer ticks on the same cycle.
+		// With nothing watching frames a step can run past them (see stepBoundary()), then this catches up on every
+		// frame it missed at once. With something watching, it's always on time and this goes round once
+		frameEvent = scheduler.add(cycle -> {
+			do {
+				nextFrameTime += Timer.timeBetweenUpdates;
+				if (rewind != null) {
+					if (rewind.isRewinding()) {
+						stepBackDue = true; // Done by run() once the scheduler is finished with this cycle
+					} else {
+						rewind.check(this);
+					}
+				}
+				display.check(emulatedTime);
+				if (capture != null && display.getFrameBuffer() != null) {
+					capture.offer(display.getFrameBuffer());
+				}
+				if (metrics != null) {
+					metrics.frame(cycles, speed == UNLIMITED ? 0 : (long) (Timer.timeBetweenUpdates / speed));
+				}
+			} while (nextFrameTime <= emulatedTime);
+			return cycleAtOrAfter(nextFrameTime);
+		}, 0);
+		delayEvent = scheduler.add(cycle -> {
+			delay.check(emulatedTime);
+			return tickCycle(delay);
+		}, Scheduler.NEVER);
+		soundEvent = scheduler.add(cycle -> {
+			sound.check(emulatedTime);
+			return tickCycle(sound);
+		}, Scheduler.NEVER);
+
+		ram.write(0, FONT, 0, FONT.length);
 	}
 
 	public void run() throws InterruptedException {
-		long cycleWaitNanos = (long) (1e9 / cpu_freq);
+		run(Long.MAX_VALUE);
+	}
+
+	// Runs for at most maxCycles instructions (or until execution finishes), returns the number executed
+	public long run(long maxCycles) throws InterruptedException {
+		boolean throttled = speed != UNLIMITED;
+		double nanosPerCycle = minClockWaitTime / speed;
+
+		long startCycles = cycles;
+		long startTime = System.nanoTime();
+		long reportTime = startTime;
+		long reportCycles = cycles;
+		long nextWallClockCheck = cycles;
+		runThread = Thread.currentThread();
+		Tracer tracer = this.tracer;
+
+		while (cycles - startCycles < maxCycles) {
+			if (cycles >= scheduler.nextDue) {
+				scheduler.fire(cycles);
+				if (stepBackDue) {
+					// Rewinding takes cycles backwards. The loop's own counts move with them, so it keeps pacing (and
+					// counting towards maxCycles) by the cycles actually run
+					stepBackDue = false;
+					long before = cycles;
+					rewind.stepBack(this);
+					startCycles += cycles - before;
+					reportCycles += cycles - before;
+					nextWallClockCheck += cycles - before;
+					continue;
+				}
+			}
 
-		long t0 = System.nanoTime();
-		while (true) {
-			delay.check();
-			sound.check();
-			display.check();
+			boolean ret;
+			int executed = 1;
+			if (waitingForKey) {
+				// Nothing to run until a key comes in, but time still passes until the next timer tick or frame.
+				// Unthrottled, we wait at normal speed: there's nothing to gain from skipping through it
+				long idle = Math.min(scheduler.nextDue, startCycles + maxCycles) - cycles;
+				long change = keyboard.nextChange(cycles);
+				if (change != KeyboardInterface.LIVE) {
+					executed = skipToKey(idle, change);
+				} else {
+					executed = throttled
+							? waitForKey(idle, startTime + (long) ((cycles - startCycles) * nanosPerCycle), nanosPerCycle)
+							: waitForKey(idle, System.nanoTime(), minClockWaitTime);
+				}
+				ret = false;
+			} else if (tracer != null) {
+				// Traced runs go through the interpreter one instruction at a time, so every instruction gets a record
+				int tracedPC = PC;
+				int instr = (ram.get(PC) << 8) | ram.get(PC + 1);
+				ret = execute();
+				tracer.record(cycles, tracedPC, instr, I, V);
+			} else switch (engine) {
+				case INTERPRETER: ret = execute(); break;
+				// Throttled, the clock is paced per step rather than per instruction. Steps stop at the next frame so the
+				// display keeps up, but a block or superinstruction that's already started runs to the end
+				case PREDECODED: {
+					long limit = untilNextEvent(maxCycles - (cycles - startCycles));
+					if (throttled) {
+						limit = Math.min(limit, Math.max(scheduler.due(frameEvent) - cycles, FusedOp.MAX_BYTES / 2));
+					}
+					try {
+						ret = executeDecoded(limit);
+					} catch (RuntimeException e) {
+						throw stepFailed(e);
+					}
+					executed = stepCycles;
+					break;
+				}
+				default:
+					try {
+						ret = executeCompiled(untilNextEvent(maxCycles - (cycles - startCycles)),
+								throttled ? scheduler.due(frameEvent) : Scheduler.NEVER);
+					} catch (RuntimeException e) {
+						throw stepFailed(e);
+					}
+					executed = stepCycles;
+					break;
+			}
+			cycles += executed;
+			emulatedTime += executed * minClockWaitTime;
 
-			boolean ret = execute();
 			if (ret) { // Execution finished
 				display.executionFinished();
-				return;
+				break;
 			}
 
-			// Timing: Wait for next clock cycle
-			t0 = System.nanoTime();
-
-			long waitTime = nextClockTime - t0;//cycleWaitNanos - (t1 - t0);
+			// Only look at the wall clock every 1024 cycles so turbo mode isn't dominated by nanoTime()
+			if (!throttled && cycles < nextWallClockCheck) {
+				continue;
+			}
+			nextWallClockCheck = cycles + 1024;
+
+			long t0 = System.nanoTime();
+			if (t0 - reportTime >= speedReportInterval) {
+				instructionsPerSecond = (cycles - reportCycles) * 1e9 / (t0 - reportTime);
+				display.reportSpeed(instructionsPerSecond);
+				reportTime = t0;
+				reportCycles = cycles;
+			}
 
-			// Sleep until we have 500 microseconds left, then switch to busywait for better precision
-			// Windows has crappy timers so we need this hack
-			int sleepTime = (int) (waitTime - 500000);
-			if (sleepTime > 0) {
-				Thread.sleep(sleepTime / 1000000, sleepTime % 1000000);
+			if (throttled) {
+				// Timing: Wait for next clock cycle
+				long nextClockTime = startTime + (long) ((cycles - startCycles) * nanosPerCycle);
+				long waitTime = nextClockTime - t0;
+
+				// Sleep until we have 500 microseconds left, then switch to busywait for better precision
+				// Windows has crappy timers so we need this hack
+				int sleepTime = (int) (waitTime - 500000);
+				if (sleepTime > 0) {
+					Thread.sleep(sleepTime / 1000000, sleepTime % 1000000);
+				}
+
+				// Busy wait until we reach next clock cycle
+				while (t0 < nextClockTime) {
+					t0 = System.nanoTime();
+				}
+				if (metrics != null) {
+					metrics.clockLateness(t0 - nextClockTime);
+				}
 			}
+		}
+
+		long elapsed = System.nanoTime() - startTime;
+		if (reportCycles == startCycles && elapsed > 0) { // Ran for less than one report interval
+			instructionsPerSecond = (cycles - startCycles) * 1e9 / elapsed;
+		}
+		return cycles - startCycles;
+	}
+
+	// A multi-instruction step threw. The instructions it ran before the one that threw still count, the same as they
+	// would have in the interpreter, which never counts the instruction that throws
+	private RuntimeException stepFailed(RuntimeException e) {
+		cycles += stepCycles;
+		emulatedTime += stepCycles * minClockWaitTime;
+		return e;
+	}
+
+	public void setEngine(Engine engine) {
+		this.engine = engine;
+	}
+
+	public Engine getEngine() {
+		return engine;
+	}
+
+	// Whether the PREDECODED engine runs common instruction sequences as superinstructions (see FusedOp)
+	public void setFusion(boolean fusion) {
+		this.fusion = fusion;
+	}
+
+	public boolean getFusion() {
+		return fusion;
+	}
+
+	public long getCycles() {
+		return cycles;
+	}
+
+	// Restarts the random number sequence Cxkk draws from
+	public void setSeed(long seed) {
+		this.seed = seed;
+		randomState = seed;
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	// Next byte from the generator (SplitMix64, top 8 bits). Compiled blocks call this for Cxkk too
+	int randomByte() {
+		return randomByte(randomState += RANDOM_STEP);
+	}
 
-			// Busy wait until we reach next clock cycle
-			while (t0 < nextClockTime) {
-				t0 = System.nanoTime();
+	static final long RANDOM_STEP = 0x9E3779B97F4A7C15L;
+
+	// The byte the generator gives for a state, BatchEngine keeps its own states and uses this too
+	static int randomByte(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return (int) ((z ^ (z >>> 31)) >>> 56);
+	}
+
+	public void setRewind(Rewind rewind) {
+		this.rewind = rewind;
+	}
+
+	public Rewind getRewind() {
+		return rewind;
+	}
+
+	// Takes effect from the next run() call. Tracing runs every engine as the interpreter
+	public void setTracer(Tracer tracer) {
+		this.tracer = tracer;
+	}
+
+	public Tracer getTracer() {
+		return tracer;
+	}
+
+	public void setMetrics(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	public void setCapture(FrameCapture capture) {
+		this.capture = capture;
+	}
+
+	public FrameCapture getCapture() {
+		return capture;
+	}
+
+	// Where the sound timer's tone goes, silent unless set
+	public void setAudioSink(AudioSink sink) {
+		sound.setSink(sink);
+	}
+
+	// Called by Rewind after it has written a snapshot back into the machine
+	void restored(long cycles, long emulatedTime, long nextFrameTime) {
+		this.cycles = cycles;
+		this.emulatedTime = emulatedTime;
+		invalidateDecodeCache();
+		atBlockLeader = true;
+		waitingForKey = false; // The Fx0A (if PC is on one) will start waiting again
+
+		this.nextFrameTime = nextFrameTime;
+		scheduler.schedule(frameEvent, cycleAtOrAfter(nextFrameTime));
+		scheduler.schedule(delayEvent, tickCycle(delay));
+		scheduler.schedule(soundEvent, tickCycle(sound));
+	}
+
+	// Halted on Fx0A: park until maxCycles at nanosPerCycle have passed since start (the wall clock time of the
+	// current cycle), or until a key is pressed. Returns the number of cycles that passed.
+	// Only peeks at the keypad: the Fx0A that runs next does the real read, at the cycle it actually happens on
+	private int waitForKey(long maxCycles, long start, double nanosPerCycle) {
+		maxCycles = Math.max(1, Math.min(maxCycles, Integer.MAX_VALUE));
+		long end = start + (long) (maxCycles * nanosPerCycle);
+		while (keyboard.getPressedKeys() == 0) {
+			long left = end - System.nanoTime();
+			if (left <= 0) {
+				return (int) maxCycles;
 			}
+			LockSupport.parkNanos(this, left);
+		}
+		// Run the Fx0A again, which will pick the key up
+		waitingForKey = false;
+		return (int) Math.max(0, Math.min(maxCycles, (long) ((System.nanoTime() - start) / nanosPerCycle)));
+	}
+
+	// Halted on Fx0A with replayed input, which knows the cycle the keys next change at: skip straight there, but no
+	// further than maxCycles. Returns the number of cycles skipped
+	private int skipToKey(long maxCycles, long change) {
+		if (keyboard.getPressedKeys() != 0) {
+			// Run the Fx0A again, which will pick the key up
+			waitingForKey = false;
+			return 0;
+		}
+		return (int) Math.max(1, Math.min(Math.min(maxCycles, change - cycles), Integer.MAX_VALUE));
+	}
+
+	// Cycle number of the instruction running right now, for peripherals (eg. InputRecorder) called in the middle of
+	// a step, when cycles hasn't caught up yet
+	long instructionCycle() {
+		return cycles + chainOffset;
+	}
+
+	// Scheduling
+
+	// Instructions a multi-instruction step can run from the current cycle without crossing stepBoundary(). At least 1,
+	// at most max
+	private long untilNextEvent(long max) {
+		return Math.max(1, Math.min(max, stepBoundary() - cycles));
+	}
+
+	// The cycle a multi-instruction step has to end by. The interpreter ticks timers before the instruction they're
+	// due at, and programs read the delay timer, so steps always end before a tick. Frames only matter to whatever
+	// looks at the machine when they happen (rewind snapshots, captures, metrics): without any of those, a frame
+	// falling inside a step just fires once it's done, and the frame and timer state come out the same
+	private long stepBoundary() {
+		if (rewind != null || capture != null || metrics != null) {
+			return scheduler.nextDue;
+		}
+		return Math.min(scheduler.due(delayEvent), scheduler.due(soundEvent));
+	}
 
-			nextClockTime += minClockWaitTime;
+	// Fire whatever is due at the current cycle, like the next run() would before its first instruction, so CPUs can be
+	// compared between run() calls
+	void fireDueEvents() {
+		if (cycles >= scheduler.nextDue) {
+			scheduler.fire(cycles);
 		}
 	}
 
+	// Timers are set through these so their next tick gets scheduled. time is the emulated time of the instruction
+	// doing it, which is later than emulatedTime when it isn't the first instruction of a step
+	void setDelayTimer(int value, long time) {
+		delay.setTimer(value, time);
+		scheduler.schedule(delayEvent, tickCycle(delay));
+	}
+
+	void setSoundTimer(int value, long time) {
+		sound.setTimer(value, time);
+		scheduler.schedule(soundEvent, tickCycle(sound));
+	}
+
+	// First cycle at which the timer will tick. Timers tick on the first check after their deadline (see Timer.check())
+	private long tickCycle(Timer timer) {
+		long deadline = timer.getDeadline();
+		if (deadline == Long.MAX_VALUE) {
+			return Scheduler.NEVER;
+		}
+		if (deadline < emulatedTime) {
+			return cycles;
+		}
+		return cycles + (deadline - emulatedTime) / minClockWaitTime + 1;
+	}
+
+	// First cycle at or after the given emulated time
+	private long cycleAtOrAfter(long time) {
+		if (time <= emulatedTime) {
+			return cycles;
+		}
+		return cycles + (time - emulatedTime + minClockWaitTime - 1) / minClockWaitTime;
+	}
+
+	// Sustained instructions per second over the last report interval
+	public double getInstructionsPerSecond() {
+		return instructionsPerSecond;
+	}
 
 	public static String instrToString(int instr) {
 		return String.format("0x%04X", instr);
 	}
 
+	private static byte[] toBytes(int... values) {
+		byte[] bytes = new byte[values.length];
+		for (int i=0; i<values.length; i++) {
+			bytes[i] = (byte) values[i];
+		}
+		return bytes;
+	}
+
 	public static int getn(int instr) {
 		return instr & 0x0FFF;
 	}
@@ -121,90 +533,463 @@ public class CPU {
 		return (instr & 0x00F0) >> 4;
 	}
 
+	// Unsigned value of V[x]
+	private int v(int x) {
+		return V[x] & 0xFF;
+	}
+
+	// V[x] <- low 8 bits of value
+	private void setV(int x, int value) {
+		V[x] = (byte) value;
+	}
+
 	// Increment program counter
 	private void next() {
 		PC += 0x2;
 	}
 
 	// Returns true if execution has finished
+	// This is the reference interpreter, every other engine has to behave exactly like it
 	boolean execute() throws UnsupportedOperationException {
 		// Fetch instruction (2 bytes) from ram
-		int instr = (((int) ram[PC]) << 8) + ((int) ram[PC + 1]);
-//		System.out.println(instrToString(instr));
+		int instr = (ram.get(PC) << 8) | ram.get(PC + 1);
 
 		int oldPC = PC;
 
+		int x = getx(instr);
+		int y = gety(instr);
+		int kk = getk(instr);
+		int nnn = getn(instr);
+
 		switch ((instr & 0xF000) >>> 12) {
 			case 0x0: switch (instr) {
-				case 0x00E0: op_00E0(instr); break;
-				case 0x00EE: op_00EE(instr); break;
-				default:
-					System.out.println("0x0nnn instruction intentionally ignored: " + instrToString(instr));
-					next();
-					break;
+				case 0x00E0: op_00E0(); break;
+				case 0x00EE: op_00EE(); break;
+				default: op_0nnn(instr); break;
 			}; break;
-			case 0x1: op_1nnn(instr); break;
-			case 0x2: op_2nnn(instr); break;
-			case 0x3: op_3xkk(instr); break;
-			case 0x4: op_4xkk(instr); break;
-			case 0x5: op_5xy0(instr); break;
-			case 0x6: op_6xkk(instr); break;
-			case 0x7: op_7xkk(instr); break;
+			case 0x1: op_1nnn(nnn); break;
+			case 0x2: op_2nnn(nnn); break;
+			case 0x3: op_3xkk(x, kk); break;
+			case 0x4: op_4xkk(x, kk); break;
+			case 0x5: op_5xy0(x, y); break;
+			case 0x6: op_6xkk(x, kk); break;
+			case 0x7: op_7xkk(x, kk); break;
 			case 0x8: switch (instr & 0x000F) {
-				case 0x0: op_8xy0(instr); break;
-				case 0x1: op_8xy1(instr); break;
-				case 0x2: op_8xy2(instr); break;
-				case 0x3: op_8xy3(instr); break;
-				case 0x4: op_8xy4(instr); break;
-				case 0x5: op_8xy5(instr); break;
-				case 0x6: op_8xy6(instr); break;
-				case 0x7: op_8xy7(instr); break;
-				case 0xE: op_8xyE(instr); break;
+				case 0x0: op_8xy0(x, y); break;
+				case 0x1: op_8xy1(x, y); break;
+				case 0x2: op_8xy2(x, y); break;
+				case 0x3: op_8xy3(x, y); break;
+				case 0x4: op_8xy4(x, y); break;
+				case 0x5: op_8xy5(x, y); break;
+				case 0x6: op_8xy6(x, y); break;
+				case 0x7: op_8xy7(x, y); break;
+				case 0xE: op_8xyE(x, y); break;
 				default: throw new UnsupportedOperationException("Unexpected arithmetic instruction " + instrToString(instr));
 			}; break;
-			case 0x9: op_9xy0(instr); break;
-			case 0xA: op_Annn(instr); break;
-			case 0xB: op_Bnnn(instr); break;
-			case 0xC: op_Cxkk(instr); break;
-			case 0xD: op_Dxyn(instr); break;
-			case 0xE: switch (getk(instr)) {
-				case 0x9E: op_Ex9E(instr); break;
-				case 0xA1: op_ExA1(instr); break;
+			case 0x9: op_9xy0(x, y); break;
+			case 0xA: op_Annn(nnn); break;
+			case 0xB: op_Bnnn(nnn); break;
+			case 0xC: op_Cxkk(x, kk); break;
+			case 0xD: op_Dxyn(x, y, instr & 0x000F); break;
+			case 0xE: switch (kk) {
+				case 0x9E: op_Ex9E(x); break;
+				case 0xA1: op_ExA1(x); break;
 				case 0x7F:
 				default: throw new UnsupportedOperationException("Unexpected skip instruction " + instrToString(instr));
 			}; break;
-			case 0xF: switch (getk(instr)) {
-				case 0x07: op_Fx07(instr); break;
-				case 0x0A: op_Fx0A(instr); break;
-				case 0x15: op_Fx15(instr); break;
-				case 0x18: op_Fx18(instr); break;
-				case 0x1E: op_Fx1E(instr); break;
-				case 0x29: op_Fx29(instr); break;
-				case 0x33: op_Fx33(instr); break;
-				case 0x55: op_Fx55(instr); break;
-				case 0x65: op_Fx65(instr); break;
+			case 0xF: switch (kk) {
+				case 0x07: op_Fx07(x); break;
+				case 0x0A: op_Fx0A(x); break;
+				case 0x15: op_Fx15(x); break;
+				case 0x18: op_Fx18(x); break;
+				case 0x1E: op_Fx1E(x); break;
+				case 0x29: op_Fx29(x); break;
+				case 0x33: op_Fx33(x); break;
+				case 0x55: op_Fx55(x); break;
+				case 0x65: op_Fx65(x); break;
 				default: throw new UnsupportedOperationException("Unexpected instruction " + instrToString(instr));
 			}; break;
 			default: throw new UnsupportedOperationException("Unexpected instruction " + instrToString(instr));
 		}
+		if (metrics != null) {
+			metrics.count(instr, V[0xF] != 0);
+		}
 
-		if (oldPC == PC) {
+		if (oldPC == PC && !waitingForKey) {
 			System.out.println("Issue with " + instrToString(instr) + ": PC stuck - exiting.");
 			return true;
 		}
 		return false;
 	}
 
+	// PREDECODED DISPATCH
+
+	// Same as execute(), but takes instructions and their operands from the decode cache instead of ram, and runs up to
+	// maxInstructions of them in one step, or a superinstruction (see executeFused()). A step ends early before
+	// anything that has to run alone, or that's fused. Sets stepCycles to the number of instructions executed, also
+	// when one throws. Returns true if execution has finished
+	boolean executeDecoded(long maxInstructions) throws UnsupportedOperationException {
+		int executed = 0;
+		try {
+			while (true) {
+				// Past the end of ram the fetch below throws, the same as it does in the interpreter
+				DecodedOp op = PC < decoded.length ? decoded[PC] : null;
+				if (op == null) {
+					op = decode((ram.get(PC) << 8) | ram.get(PC + 1));
+					decoded[PC] = op;
+				}
+				if (fusion) {
+					FusedOp fusedOp = fusedAt(PC);
+					if (fusedOp != FusedOp.NONE) {
+						// Ends the step here, or with nothing run yet starts a superinstruction (see below the loop)
+						if (executed > 0 || fusedOp.length <= maxInstructions) {
+							break;
+						}
+					}
+				}
+				if (op.alone && executed > 0) {
+					break;
+				}
+
+				int oldPC = PC;
+
+				switch (op.kind) {
+					case DecodedOp.OP_00E0: op_00E0(); break;
+					case DecodedOp.OP_00EE: op_00EE(); break;
+					case DecodedOp.OP_0nnn: op_0nnn(op.instr); break;
+					case DecodedOp.OP_1nnn: op_1nnn(op.nnn); break;
+					case DecodedOp.OP_2nnn: op_2nnn(op.nnn); break;
+					case DecodedOp.OP_3xkk: op_3xkk(op.x, op.kk); break;
+					case DecodedOp.OP_4xkk: op_4xkk(op.x, op.kk); break;
+					case DecodedOp.OP_5xy0: op_5xy0(op.x, op.y); break;
+					case DecodedOp.OP_6xkk: op_6xkk(op.x, op.kk); break;
+					case DecodedOp.OP_7xkk: op_7xkk(op.x, op.kk); break;
+					case DecodedOp.OP_8xy0: op_8xy0(op.x, op.y); break;
+					case DecodedOp.OP_8xy1: op_8xy1(op.x, op.y); break;
+					case DecodedOp.OP_8xy2: op_8xy2(op.x, op.y); break;
+					case DecodedOp.OP_8xy3: op_8xy3(op.x, op.y); break;
+					case DecodedOp.OP_8xy4: op_8xy4(op.x, op.y); break;
+					case DecodedOp.OP_8xy5: op_8xy5(op.x, op.y); break;
+					case DecodedOp.OP_8xy6: op_8xy6(op.x, op.y); break;
+					case DecodedOp.OP_8xy7: op_8xy7(op.x, op.y); break;
+					case DecodedOp.OP_8xyE: op_8xyE(op.x, op.y); break;
+					case DecodedOp.OP_9xy0: op_9xy0(op.x, op.y); break;
+					case DecodedOp.OP_Annn: op_Annn(op.nnn); break;
+					case DecodedOp.OP_Bnnn: op_Bnnn(op.nnn); break;
+					case DecodedOp.OP_Cxkk: op_Cxkk(op.x, op.kk); break;
+					case DecodedOp.OP_Dxyn: op_Dxyn(op.x, op.y, op.n); break;
+					case DecodedOp.OP_Ex9E: op_Ex9E(op.x); break;
+					case DecodedOp.OP_ExA1: op_ExA1(op.x); break;
+					case DecodedOp.OP_Fx07: op_Fx07(op.x); break;
+					case DecodedOp.OP_Fx0A: op_Fx0A(op.x); break;
+					case DecodedOp.OP_Fx15: op_Fx15(op.x); break;
+					case DecodedOp.OP_Fx18: op_Fx18(op.x); break;
+					case DecodedOp.OP_Fx1E: op_Fx1E(op.x); break;
+					case DecodedOp.OP_Fx29: op_Fx29(op.x); break;
+					case DecodedOp.OP_Fx33: op_Fx33(op.x); break;
+					case DecodedOp.OP_Fx55: op_Fx55(op.x); break;
+					case DecodedOp.OP_Fx65: op_Fx65(op.x); break;
+					default: return execute(); // Throws the same exception the interpreter would
+				}
+				executed++;
+				if (metrics != null) {
+					metrics.count(op.instr, V[0xF] != 0);
+				}
+
+				if (oldPC == PC && !waitingForKey) {
+					System.out.println("Issue with " + instrToString(op.instr) + ": PC stuck - exiting.");
+					stepCycles = executed;
+					return true;
+				}
+				if (op.alone || executed >= maxInstructions) {
+					break;
+				}
+			}
+		} catch (RuntimeException e) {
+			stepCycles = executed; // Only the instruction that threw didn't run
+			throw e;
+		}
+		if (executed == 0) { // Outside the try, so the instruction it counts if it throws stands
+			return executeFused(maxInstructions);
+		}
+		stepCycles = executed;
+		return false;
+	}
+
+	// Drop cached decodes and compiled blocks for any instruction overlapping ram[address, address+length)
+	// Instructions are 2 bytes and may start at odd addresses, so the one starting just before the range is stale too
+	void invalidate(int address, int length) {
+		int start = Math.max(address - 1, 0);
+		int end = Math.min(address + length, decoded.length);
+		for (int i=start; i<end; i++) {
+			decoded[i] = null;
+		}
+		for (int i=Math.max(address - FusedOp.MAX_BYTES + 1, 0); i<end; i++) {
+			fused[i] = null;
+		}
+		jit.invalidate(address, length);
+	}
+
+	// Drop the whole decode cache, eg. after ram was modified from outside the CPU
+	void invalidateDecodeCache() {
+		Arrays.fill(decoded, null);
+		Arrays.fill(fused, null);
+		jit.invalidate(0, Memory.SIZE);
+	}
+
+	private DecodedOp decodedAt(int address) {
+		if (address + 1 >= ram.size()) {
+			return null;
+		}
+		DecodedOp op = decoded[address];
+		if (op == null) {
+			op = decode((ram.get(address) << 8) | ram.get(address + 1));
+			decoded[address] = op;
+		}
+		return op;
+	}
+
+	// SUPERINSTRUCTIONS
+
+	// Runs the superinstruction at PC if there is one (and it fits in maxInstructions), otherwise one instruction like
+	// executeDecoded(). Sets stepCycles to the number of instructions executed. Returns true if execution has finished
+	boolean executeFused(long maxInstructions) throws UnsupportedOperationException {
+		FusedOp op = fusedAt(PC);
+		stepCycles = 1;
+		if (op == FusedOp.NONE || op.length > maxInstructions) {
+			return executeDecoded(1);
+		}
+
+		// None of these can leave PC where it was, so there's no need to check for it being stuck.
+		// Events only fire before the step, run() keeps maxInstructions short enough to end before stepBoundary()
+		switch (op.kind) {
+			case FusedOp.LOAD_SET_TIMER:
+				op_6xkk(op.first.x, op.first.kk);
+				// The timer is set one instruction later than the step started
+				if (op.second.kk == 0x15) {
+					setDelayTimer(v(op.second.x), emulatedTime + minClockWaitTime);
+				} else {
+					setSoundTimer(v(op.second.x), emulatedTime + minClockWaitTime);
+				}
+				next();
+				stepCycles = 2;
+				break;
+			case FusedOp.LOAD_I_DRAW:
+				op_Annn(op.first.nnn);
+				op_Dxyn(op.second.x, op.second.y, op.second.n);
+				stepCycles = 2;
+				break;
+			case FusedOp.ADD_SKIP:
+				op_7xkk(op.first.x, op.first.kk);
+				if ((op.second.instr & 0xF000) == 0x3000) {
+					op_3xkk(op.second.x, op.second.kk);
+				} else {
+					op_4xkk(op.second.x, op.second.kk);
+				}
+				stepCycles = 2;
+				break;
+			case FusedOp.DELAY_WAIT:
+				op_Fx07(op.first.x);
+				op_3xkk(op.second.x, op.second.kk);
+				if (PC == op.third.nnn + 6) { // Timer reached the value we were waiting for, the skip jumped out
+					stepCycles = 2;
+					break;
+				}
+				op_1nnn(op.third.nnn);
+				stepCycles = 3 * delayWaitSpins(maxInstructions);
+				break;
+		}
+		if (metrics != null) {
+			countFused(op);
+		}
+		return false;
+	}
+
+	private FusedOp fusedAt(int address) {
+		FusedOp op = fused[address];
+		if (op == null) {
+			op = FusedOp.match(address, decodedAt(address), decodedAt(address + 2), decodedAt(address + 4));
+			fused[address] = op;
+		}
+		return op;
+	}
+
+	// The step ran the instructions of op in order, going round again for each extra spin of a delay wait loop
+	private void countFused(FusedOp op) {
+		for (int i=0; i<stepCycles; i++) {
+			DecodedOp ran = i % 3 == 0 ? op.first : i % 3 == 1 ? op.second : op.third;
+			metrics.count(ran.instr, V[0xF] != 0);
+		}
+	}
+
+	// How many times the delay wait loop at PC can go round in one step. Every iteration after the first reads the
+	// delay timer again, so they all see the same value (and do exactly the same thing) only while no timer ticks.
+	// Timer ticks are scheduler events, so keeping within maxInstructions is enough
+	private int delayWaitSpins(long maxInstructions) {
+		return (int) Math.min(maxDelayWaitSpins, maxInstructions / 3);
+	}
+
+	// JIT
+
+	// Runs the compiled block at PC if there is one, and any compiled blocks following it, otherwise interprets one
+	// instruction like execute(). Sets stepCycles to the number of instructions executed (not counting one that
+	// throws), which never exceeds maxInstructions. No more blocks get chained on once the chain reaches cycle chainEnd.
+	// Returns true if execution has finished
+	boolean executeCompiled(long maxInstructions, long chainEnd) throws UnsupportedOperationException {
+		int executed = 0;
+		long start = cycles;
+		// The interpreter fires events before every instruction, compiled blocks only get checked once before a chain of
+		// them starts. So every block has to end by stepBoundary(), which only moves when a block sets a timer
+		long limit = Math.min(Math.min(maxInstructions, Jit.MAX_CHAIN_INSTRUCTIONS), stepBoundary() - start);
+		long chainLimit = chainEnd - start;
+
+		try {
+			while (atBlockLeader && (executed == 0 || executed < chainLimit)) {
+				JitBlock block = jit.lookup(PC);
+				if (block.delayWait && fusion) {
+					if (executed > 0) {
+						break; // Spin it as the next step
+					}
+					// Going round it as two blocks per spin would be slower than the interpreter
+					boolean ret = executeFused(Math.min(maxInstructions, Math.max(chainLimit, FusedOp.MAX_BYTES / 2)));
+					atBlockLeader = true; // Back at the Fx07, or wherever the skip jumped out to
+					return ret;
+				}
+				CompiledBlock code = block.compiled;
+				int length = block.length();
+				if (code == null || executed + length > limit) {
+					if (executed == 0) {
+						jit.hit(block);
+					}
+					break;
+				}
+
+				// A block that loops goes round again while it stays within the step, and the chain limit if it's over one pass
+				int budget = (int) Math.min(limit - executed, Math.max(length, chainLimit - executed));
+				chainOffset = executed; // The block moves it on to whichever instruction looks at the keypad
+				int ran = code.run(this, emulatedTime + executed * minClockWaitTime, budget);
+				chainOffset = 0;
+				executed += ran;
+				if (metrics != null) {
+					metrics.countBlock(block.instrs, ran, V[0xF] != 0);
+				}
+				if (block.setsTimer) {
+					limit = Math.min(limit, stepBoundary() - start);
+				}
+
+				if (waitingForKey) {
+					break; // The block ended on an Fx0A with no key pressed, run() waits for one
+				}
+				if (ran % length == 0 && PC == block.lastAddress) {
+					System.out.println("Issue with " + instrToString(block.instrs[length - 1]) + ": PC stuck - exiting.");
+					stepCycles = executed;
+					return true;
+				}
+				// PC is at whatever followed the block, which always starts another one
+			}
+		} catch (RuntimeException e) {
+			// Inside a block, the generated code points chainOffset at anything that can throw before running it
+			stepCycles = Math.max(executed, chainOffset);
+			chainOffset = 0;
+			throw e;
+		}
+
+		if (executed > 0) {
+			stepCycles = executed;
+			return false;
+		}
+
+		// Anything that isn't compiled goes through the plain interpreter, the fastest way to run one instruction
+		stepCycles = 0; // Unless it throws
+		int oldPC = PC;
+		int instr = (ram.get(PC) << 8) | ram.get(PC + 1);
+		boolean ret = execute();
+		stepCycles = 1;
+
+		// A new block starts wherever control flow went, or after anything that can't be part of a block
+		atBlockLeader = PC != oldPC + 2 || Jit.classify(instr) != Jit.BODY;
+		return ret;
+	}
+
+	// Decoding only depends on the instruction word, so every CPU shares one DecodedOp per word.
+	// DecodedOps are immutable, racing threads at worst decode the same word twice
+	private static final DecodedOp[] decodeCache = new DecodedOp[0x10000];
+
+	// Work out which instruction a word is. Invalid instructions only throw once they're actually executed,
+	// since data is decoded too whenever the program jumps into it
+	static DecodedOp decode(int instr) {
+		DecodedOp op = decodeCache[instr];
+		if (op == null) {
+			op = decodeUncached(instr);
+			decodeCache[instr] = op;
+		}
+		return op;
+	}
+
+	private static DecodedOp decodeUncached(int instr) {
+		int kind;
+		switch ((instr & 0xF000) >>> 12) {
+			case 0x0: switch (instr) {
+				case 0x00E0: kind = DecodedOp.OP_00E0; break;
+				case 0x00EE: kind = DecodedOp.OP_00EE; break;
+				default: kind = DecodedOp.OP_0nnn; break;
+			}; break;
+			case 0x1: kind = DecodedOp.OP_1nnn; break;
+			case 0x2: kind = DecodedOp.OP_2nnn; break;
+			case 0x3: kind = DecodedOp.OP_3xkk; break;
+			case 0x4: kind = DecodedOp.OP_4xkk; break;
+			case 0x5: kind = DecodedOp.OP_5xy0; break;
+			case 0x6: kind = DecodedOp.OP_6xkk; break;
+			case 0x7: kind = DecodedOp.OP_7xkk; break;
+			case 0x8: switch (instr & 0x000F) {
+				case 0x0: kind = DecodedOp.OP_8xy0; break;
+				case 0x1: kind = DecodedOp.OP_8xy1; break;
+				case 0x2: kind = DecodedOp.OP_8xy2; break;
+				case 0x3: kind = DecodedOp.OP_8xy3; break;
+				case 0x4: kind = DecodedOp.OP_8xy4; break;
+				case 0x5: kind = DecodedOp.OP_8xy5; break;
+				case 0x6: kind = DecodedOp.OP_8xy6; break;
+				case 0x7: kind = DecodedOp.OP_8xy7; break;
+				case 0xE: kind = DecodedOp.OP_8xyE; break;
+				default: kind = DecodedOp.INVALID; break;
+			}; break;
+			case 0x9: kind = DecodedOp.OP_9xy0; break;
+			case 0xA: kind = DecodedOp.OP_Annn; break;
+			case 0xB: kind = DecodedOp.OP_Bnnn; break;
+			case 0xC: kind = DecodedOp.OP_Cxkk; break;
+			case 0xD: kind = DecodedOp.OP_Dxyn; break;
+			case 0xE: switch (getk(instr)) {
+				case 0x9E: kind = DecodedOp.OP_Ex9E; break;
+				case 0xA1: kind = DecodedOp.OP_ExA1; break;
+				default: kind = DecodedOp.INVALID; break;
+			}; break;
+			case 0xF: switch (getk(instr)) {
+				case 0x07: kind = DecodedOp.OP_Fx07; break;
+				case 0x0A: kind = DecodedOp.OP_Fx0A; break;
+				case 0x15: kind = DecodedOp.OP_Fx15; break;
+				case 0x18: kind = DecodedOp.OP_Fx18; break;
+				case 0x1E: kind = DecodedOp.OP_Fx1E; break;
+				case 0x29: kind = DecodedOp.OP_Fx29; break;
+				case 0x33: kind = DecodedOp.OP_Fx33; break;
+				case 0x55: kind = DecodedOp.OP_Fx55; break;
+				case 0x65: kind = DecodedOp.OP_Fx65; break;
+				default: kind = DecodedOp.INVALID; break;
+			}; break;
+			default: kind = DecodedOp.INVALID; break;
+		}
+		return new DecodedOp(instr, kind);
+	}
+
 	// INSTRUCTIONS
 
 	// Clear the display
-	private void op_00E0(int instr) {
+	private void op_00E0() {
 		display.clear();
 		next();
 	}
 
 	// Return from subroutine (pop stack)
-	private void op_00EE(int instr) {
+	private void op_00EE() {
 		if (SP < 0) {
 			throw new IllegalStateException("0x00EE: Tried to pop empty stack");
 		}
@@ -213,226 +998,217 @@ public class CPU {
 		next();
 	}
 
+	// 0nnn: machine code routine on the original hardware, we don't support these.
+	// Ignored silently, run with a tracer to see where they happen
+	private void op_0nnn(int instr) {
+		next();
+	}
+
 	// Unconditional jump
-	private void op_1nnn(int instr) {
-		PC = (short) getn(instr);
+	private void op_1nnn(int nnn) {
+		PC = (short) nnn;
 	}
 
 	// Call subroutine
-	private void op_2nnn(int instr) {
+	private void op_2nnn(int nnn) {
 		SP += 1;
 		stack[SP] = PC;
-		PC = (short) getn(instr);
+		PC = (short) nnn;
 	}
 
 	// Skip instruction if V[x] == kk
-	private void op_3xkk(int instr) {
-		if (V[getx(instr)] == getk(instr)) {
+	private void op_3xkk(int x, int kk) {
+		if (v(x) == kk) {
 			next();
 		}
 		next();
 	}
 
 	// Skip instruction if V[x] != kk
-	private void op_4xkk(int instr) {
-		if (V[getx(instr)] != getk(instr)) {
+	private void op_4xkk(int x, int kk) {
+		if (v(x) != kk) {
 			next();
 		}
 		next();
 	}
 
 	// Skip if V[x] == V[y]
-	private void op_5xy0(int instr) {
-		if (V[getx(instr)] == V[gety(instr)]) {
+	private void op_5xy0(int x, int y) {
+		if (V[x] == V[y]) {
 			next();
 		}
 		next();
 	}
 
 	// V[x] <- kk
-	private void op_6xkk(int instr) {
-		V[getx(instr)] = (short)getk(instr);
+	private void op_6xkk(int x, int kk) {
+		setV(x, kk);
 		next();
 	}
 
 	// V[x] += kk
-	private void op_7xkk(int instr) {
-		V[getx(instr)] += getk(instr);
-		V[getx(instr)] %= 0x100;
+	private void op_7xkk(int x, int kk) {
+		setV(x, v(x) + kk);
 		next();
 	}
 
 	// V[x] <- V[y]
-	private void op_8xy0(int instr) {
-		V[getx(instr)] = V[gety(instr)];
+	private void op_8xy0(int x, int y) {
+		V[x] = V[y];
 		next();
 	}
 
 	// V[x] <- V[x] | V[y]
-	private void op_8xy1(int instr) {
-		V[getx(instr)] |= V[gety(instr)];
+	private void op_8xy1(int x, int y) {
+		V[x] |= V[y];
 		next();
 	}
 
 	// V[x] <- V[x] & V[y]
-	private void op_8xy2(int instr) {
-		V[getx(instr)] &= V[gety(instr)];
+	private void op_8xy2(int x, int y) {
+		V[x] &= V[y];
 		next();
 	}
 
 	// V[x] <- V[x] ^ V[y]
-	private void op_8xy3(int instr) {
-		V[getx(instr)] ^= V[gety(instr)];
+	private void op_8xy3(int x, int y) {
+		V[x] ^= V[y];
 		next();
 	}
 
 	// V[x] <- V[x] + V[y], set V[F] as carry
-	private void op_8xy4(int instr) {
-		int sum = V[getx(instr)] + V[gety(instr)];
-		V[0xF] = (short) ((sum > 0xFF) ? 1 : 0);
-		V[getx(instr)] = (short)(sum % 0x100);
+	private void op_8xy4(int x, int y) {
+		int sum = v(x) + v(y);
+		V[0xF] = (byte) ((sum > 0xFF) ? 1 : 0);
+		setV(x, sum);
 		next();
 	}
 
 	// V[x] <- V[x] - V[y], set V[F] = NOT borrow
-	private void op_8xy5(int instr) {
-		int x = getx(instr);
-		int y = gety(instr);
-		if (V[y] > V[x]) { // borrow!
-			V[0xF] = 0;
-			V[x] += 0x100 - V[y];
-		} else {
-			V[0xF] = 1;
-			V[x] -= V[y];
-		}
+	private void op_8xy5(int x, int y) {
+		int diff = v(x) - v(y);
+		V[0xF] = (byte) ((diff < 0) ? 0 : 1); // borrow if negative
+		setV(x, diff);
 
 		next();
-
-		// Sanity checks
-		assert V[x] < 0x100;
-		assert V[x] >= 0x0;
 	}
 
 	// V[x] >>= 1, V[F] = LSB
-	private void op_8xy6(int instr) {
-		int x = getx(instr);
-		V[0xF] = (short) (V[x] & 0x1);
-		V[x] >>>= 1;
+	private void op_8xy6(int x, int y) {
+		V[0xF] = (byte) (v(x) & 0x1);
+		setV(x, v(x) >>> 1);
 
 		next();
 	}
 
 	// V[x] <- V[y] - V[x], set V[F] = NOT borrow
 	// very similar to 0x8xy5
-	private void op_8xy7(int instr) {
-		int x = getx(instr);
-		int y = gety(instr);
-		if (V[x] > V[y]) { // borrow
-			V[0xF] = 0;
-			V[x] = (short) (0x100 + V[y] - V[x]);
-		} else {
-			V[0xF] = 1;
-			V[x] = (short) (V[y] - V[x]);
-		}
+	private void op_8xy7(int x, int y) {
+		int diff = v(y) - v(x);
+		V[0xF] = (byte) ((diff < 0) ? 0 : 1); // borrow if negative
+		setV(x, diff);
 
 		next();
-
-		// Sanity checks
-		assert V[x] < 0x100;
-		assert V[x] >= 0x0;
 	}
 
 	// V[x] <<=1, V[F] = MSB
-	private void op_8xyE(int instr) {
-		int x = getx(instr);
-		V[0xF] = (short) ((V[x] >> 7)); //((V[x] & 0b10000000));
-		V[x] = (short) ((V[x] << 1) & 0xFF);
+	private void op_8xyE(int x, int y) {
+		V[0xF] = (byte) (v(x) >> 7);
+		setV(x, v(x) << 1);
 
 		next();
 	}
 
 	// Skip if V[x] != V[y]
-	private void op_9xy0(int instr) {
-		if (V[getx(instr)] != V[gety(instr)]) {
+	private void op_9xy0(int x, int y) {
+		if (V[x] != V[y]) {
 			next();
 		}
 		next();
 	}
 
 	// I <- NNN
-	private void op_Annn(int instr) {
-		I = (short) getn(instr);
+	private void op_Annn(int nnn) {
+		I = (short) nnn;
 		next();
 	}
 
 	// Jump to NNN+V[0]
-	private void op_Bnnn(int instr) {
-		PC = (short) (getn(instr) + V[0]);
+	private void op_Bnnn(int nnn) {
+		PC = (short) (nnn + v(0));
 	}
 
 	// V[x] <- NN & rand()
-	private void op_Cxkk(int instr) {
-		int rand = (int) (Math.random() * 256);
-		V[getx(instr)] = (short) (getk(instr) & rand);
+	private void op_Cxkk(int x, int kk) {
+		setV(x, kk & randomByte());
 		next();
 	}
 
 	// Draw sprite of width 8 and height N at (V[x], V[y]) (N bytes)
-	private void op_Dxyn(int instr) {
-		int N = instr & 0x000F;
-		// We'll worry about it later
-		V[0xF] = (short) (display.draw(Arrays.copyOfRange(ram, I, I+N), V[getx(instr)], V[gety(instr)]) ? 1 : 0);
+	private void op_Dxyn(int x, int y, int n) {
+		// Sprite rows are read straight out of ram, no copy
+		V[0xF] = (byte) (display.draw(ram, I, n, v(x), v(y)) ? 1 : 0);
 		next();
 	}
 
 	// Skip next instruction if key stored in V[x] is pressed
-	private void op_Ex9E(int instr) {
-		if (keyboard.isPressed(V[getx(instr)])) {
+	private void op_Ex9E(int x) {
+		if (keyboard.isPressed(v(x))) {
 			next();
 		}
 		next();
 	}
 
 	// Skip next instruction if key stored in V[x] is NOT pressed
-	private void op_ExA1(int instr) {
-		if (!keyboard.isPressed(V[getx(instr)])) {
+	private void op_ExA1(int x) {
+		if (!keyboard.isPressed(v(x))) {
 			next();
 		}
 		next();
 	}
 
 	// Set V[x] to the time left on the delay timer
- 	private void op_Fx07(int instr) {
-		V[getx(instr)] = (short) delay.getTimer();
+ 	private void op_Fx07(int x) {
+		setV(x, delay.getTimer());
 		next();
 	}
 
-	// Wait until key is pressed, and put that key in V[x]
-	private void op_Fx0A(int instr) {
-		int key = keyboard.waitForAnyKey();
+	// Fx0A for compiled blocks, which point PC at it first
+	void readKey(int x) {
+		op_Fx0A(x);
+	}
+
+	// Wait until key is pressed, and put that key in V[x]. If none is pressed yet, halt without moving PC
+	// (see run()), and this runs again once one is
+	private void op_Fx0A(int x) {
+		int key = keyboard.pollAnyKey();
+		if (key < 0) {
+			waitingForKey = true;
+			return;
+		}
 		if (key > 0xF) {
 			throw new IllegalStateException("0xFx0A: Key" + key + "pressed out of range");
 		}
-		V[getx(instr)] = (short) key;
+		setV(x, key);
 
 		next();
 	}
 
 	// Set delay timer to V[x]
-	private void op_Fx15(int instr) {
-		delay.setTimer(V[getx(instr)]);
+	private void op_Fx15(int x) {
+		setDelayTimer(v(x), emulatedTime);
 		next();
 	}
 
 	// Set sound timer to V[x]
-	private void op_Fx18(int instr) {
-		sound.setTimer(V[getx(instr)]);
+	private void op_Fx18(int x) {
+		setSoundTimer(v(x), emulatedTime);
 		next();
 	}
 
 	// I += V[x]. V[F] = 1 if result overflows 0xFFF
-	private void op_Fx1E(int instr) {
-		 I += V[getx(instr)];
+	private void op_Fx1E(int x) {
+		 I += v(x);
 		 if (I > 0xFFF) {
 		 	I %= 0x1000;
 		 	V[0xF] = 1;
@@ -444,37 +1220,35 @@ public class CPU {
 	}
 
 	// Set I to location of character in V[x]
-	private void op_Fx29(int instr) {
-		I = (short) (5*V[getx(instr)]);
+	private void op_Fx29(int x) {
+		I = (short) (5*v(x));
 		next();
 	}
 
 	// Store BCD representation of V[x] at I, I+1, I+2
-	private void op_Fx33(int instr) {
-		int num = V[getx(instr)];
+	private void op_Fx33(int x) {
+		int num = v(x);
 		int hundreds = num / 100;
 		int tens = (num / 10) % 10;
 		int ones = num % 10;
-		ram[I  ] = (short) hundreds;
-		ram[I+1] = (short) tens;
-		ram[I+2] = (short) ones;
+		ram.set(I  , hundreds);
+		ram.set(I+1, tens);
+		ram.set(I+2, ones);
+		invalidate(I, 3);
 
 		next();
 	}
 
 	// Dump contents of V[:x] starting at ram[I]
-	private void op_Fx55(int instr) {
-		for (int i=0; i <= getx(instr); i++) {
-			ram[I+i] = V[i];
-		}
+	private void op_Fx55(int x) {
+		ram.write(I, V, 0, x + 1);
+		invalidate(I, x + 1);
 		next();
 	}
 
 	// Load contents into V[:x] starting at ram[I]
-	private void op_Fx65(int instr) {
-		for (int i=0; i <= getx(instr); i++) {
-			V[i] = ram[I+i];
-		}
+	private void op_Fx65(int x) {
+		ram.read(I, V, 0, x + 1);
 		next();
 	}
 }
@@ -0,0 +1,183 @@
+package com.mxbi.chip8;
+
+import javax.imageio.*;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.io.*;
+import java.util.zip.GZIPInputStream;
+
+// Turns a capture written by FrameCapture into an animated GIF, each frame shown for as long as the screen held it
+// Usage: CaptureConverter <capture file> <gif file> [scale]
+public class CaptureConverter {
+
+    // Reads a capture back one record at a time
+    public static class Reader implements Closeable {
+        private final DataInputStream in;
+        private final FrameBuffer frame = new FrameBuffer();
+        public final int framesPerSecond;
+        private long frameNumber = -1;
+
+        public Reader(InputStream stream) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(stream)));
+            if (in.readInt() != FrameCapture.MAGIC) {
+                throw new IOException("Not a CHIP-8 capture file");
+            }
+            int version = in.readInt();
+            if (version != FrameCapture.VERSION) {
+                throw new IOException("Unsupported capture version " + version);
+            }
+            int width = in.readShort();
+            int height = in.readShort();
+            if (width != FrameBuffer.WIDTH || height != FrameBuffer.HEIGHT) {
+                throw new IOException("Unsupported capture size " + width + "x" + height);
+            }
+            framesPerSecond = in.readInt();
+        }
+
+        // Move on to the next record, false at the end of the capture
+        public boolean next() throws IOException {
+            int first = in.read();
+            if (first < 0) {
+                return false;
+            }
+            frameNumber += readVarint(first);
+
+            int changed = (int) readVarint(in.readUnsignedByte());
+            for (int y=0; y<FrameBuffer.HEIGHT; y++) {
+                if ((changed & (1 << y)) != 0) {
+                    frame.setRow(y, frame.getRow(y) ^ readRow());
+                }
+            }
+            return true;
+        }
+
+        private long readRow() throws IOException {
+            int present = in.readUnsignedByte();
+            long delta = 0;
+            for (int i=0; i<8; i++) {
+                if ((present & (0x80 >>> i)) != 0) {
+                    delta |= (long) in.readUnsignedByte() << (56 - i * 8);
+                }
+            }
+            return delta;
+        }
+
+        private long readVarint(int first) throws IOException {
+            long value = first & 0x7F;
+            int b = first;
+            for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+                b = in.readUnsignedByte();
+                value |= (long) (b & 0x7F) << shift;
+            }
+            return value;
+        }
+
+        // Emulated frame number of the current record, counting from 0
+        public long getFrameNumber() {
+            return frameNumber;
+        }
+
+        // The screen as of the current record, updated in place by next()
+        public FrameBuffer getFrame() {
+            return frame;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    public static void toGif(File capture, File gif, int scale) throws IOException {
+        IndexColorModel colours = new IndexColorModel(1, 2,
+                new byte[]{(byte) SwingDisplay.BACKGROUND.getRed(), (byte) SwingDisplay.FOREGROUND.getRed()},
+                new byte[]{(byte) SwingDisplay.BACKGROUND.getGreen(), (byte) SwingDisplay.FOREGROUND.getGreen()},
+                new byte[]{(byte) SwingDisplay.BACKGROUND.getBlue(), (byte) SwingDisplay.FOREGROUND.getBlue()});
+
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("gif").next();
+        try (Reader reader = new Reader(new FileInputStream(capture));
+             ImageOutputStream out = ImageIO.createImageOutputStream(gif)) {
+            writer.setOutput(out);
+            writer.prepareWriteSequence(null);
+
+            // GIF delays are in hundredths of a second, so a frame is only written once we know how long it lasts
+            BufferedImage pending = null;
+            long pendingFrame = 0;
+            double carry = 0;
+            while (true) {
+                boolean more = reader.next();
+                if (pending != null) {
+                    long frames = more ? reader.getFrameNumber() - pendingFrame : 1;
+                    double hundredths = frames * 100.0 / reader.framesPerSecond + carry;
+                    int delay = Math.max(1, (int) Math.round(hundredths));
+                    carry = hundredths - delay;
+                    writer.writeToSequence(new IIOImage(pending, null, frameMetadata(writer, pending, delay)), null);
+                }
+                if (!more) {
+                    break;
+                }
+
+                pending = new BufferedImage(FrameBuffer.WIDTH * scale, FrameBuffer.HEIGHT * scale,
+                        BufferedImage.TYPE_BYTE_BINARY, colours);
+                WritableRaster raster = pending.getRaster();
+                FrameBuffer frame = reader.getFrame();
+                for (int y=0; y<FrameBuffer.HEIGHT * scale; y++) {
+                    for (int x=0; x<FrameBuffer.WIDTH * scale; x++) {
+                        raster.setSample(x, y, 0, frame.get(x / scale, y / scale) ? 1 : 0);
+                    }
+                }
+                pendingFrame = reader.getFrameNumber();
+            }
+            writer.endWriteSequence();
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    private static IIOMetadata frameMetadata(ImageWriter writer, BufferedImage image, int delay) throws IOException {
+        IIOMetadata metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(image), null);
+        String format = metadata.getNativeMetadataFormatName();
+        IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(format);
+
+        IIOMetadataNode control = child(root, "GraphicControlExtension");
+        control.setAttribute("disposalMethod", "none");
+        control.setAttribute("userInputFlag", "FALSE");
+        control.setAttribute("transparentColorFlag", "FALSE");
+        control.setAttribute("delayTime", Integer.toString(delay));
+        control.setAttribute("transparentColorIndex", "0");
+
+        // Loop forever
+        IIOMetadataNode extensions = child(root, "ApplicationExtensions");
+        IIOMetadataNode loop = new IIOMetadataNode("ApplicationExtension");
+        loop.setAttribute("applicationID", "NETSCAPE");
+        loop.setAttribute("authenticationCode", "2.0");
+        loop.setUserObject(new byte[]{1, 0, 0});
+        extensions.appendChild(loop);
+
+        metadata.mergeTree(format, root);
+        return metadata;
+    }
+
+    private static IIOMetadataNode child(IIOMetadataNode parent, String name) {
+        for (int i=0; i<parent.getLength(); i++) {
+            if (parent.item(i).getNodeName().equals(name)) {
+                return (IIOMetadataNode) parent.item(i);
+            }
+        }
+        IIOMetadataNode node = new IIOMetadataNode(name);
+        parent.appendChild(node);
+        return node;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: CaptureConverter <capture file> <gif file> [scale]");
+            System.exit(1);
+        }
+        toGif(new File(args[0]), new File(args[1]), args.length > 2 ? Integer.parseInt(args[2]) : 4);
+    }
+}
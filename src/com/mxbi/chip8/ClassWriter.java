@@ -0,0 +1,400 @@
+package com.mxbi.chip8;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Just enough of the class file format for BlockCompiler: one final class with a no-argument constructor calling its
+// superclass's, and one method whose bytecode is written with the emit methods below. Branches only ever go to a
+// label with nothing on the operand stack and every local already assigned, so each label gets the same full stack
+// map frame, made up of the types passed to method()
+final class ClassWriter {
+    // Opcodes used by BlockCompiler
+    static final int ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11, LDC_W = 0x13, LDC2_W = 0x14;
+    static final int ILOAD = 0x15, LLOAD = 0x16, ALOAD = 0x19, ALOAD_0 = 0x2A, ISTORE = 0x36, ASTORE = 0x3A;
+    static final int BALOAD = 0x33, SALOAD = 0x35, BASTORE = 0x54, SASTORE = 0x56, DUP = 0x59;
+    static final int IADD = 0x60, LADD = 0x61, ISUB = 0x64, IMUL = 0x68, LMUL = 0x69, IDIV = 0x6C, IREM = 0x70;
+    static final int ISHL = 0x78, ISHR = 0x7A, IUSHR = 0x7C, IAND = 0x7E, IOR = 0x80, IXOR = 0x82;
+    static final int I2L = 0x85, I2B = 0x91, I2S = 0x93;
+    static final int IFEQ = 0x99, IFNE = 0x9A, IFGE = 0x9C;
+    static final int IF_ICMPEQ = 0x9F, IF_ICMPNE = 0xA0, IF_ICMPLE = 0xA4, GOTO = 0xA7;
+    static final int IRETURN = 0xAC, RETURN = 0xB1;
+    static final int GETFIELD = 0xB4, PUTFIELD = 0xB5;
+    static final int INVOKEVIRTUAL = 0xB6, INVOKESPECIAL = 0xB7, INVOKEINTERFACE = 0xB9;
+    static final int NEW = 0xBB, ATHROW = 0xBF;
+
+    // Verification types for method()'s locals
+    static final String INT = "I";
+    static final String LONG = "J";
+
+    private static final int ACC_PUBLIC = 0x0001, ACC_FINAL = 0x0010, ACC_SUPER = 0x0020;
+    private static final int MAJOR_VERSION = 61; // Java 17
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> entries = new HashMap<>();
+    private int poolCount = 1; // Entry 0 is unused
+
+    private final String name;
+    private final String superName;
+
+    // The method being written
+    private final ByteArrayOutputStream codeBytes = new ByteArrayOutputStream();
+    private final List<Label> labels = new ArrayList<>();
+    private final List<int[]> jumps = new ArrayList<>(); // Offset of the branch instruction, and label index
+    private String methodName;
+    private String methodDescriptor;
+    private String[] locals;
+    private int maxStack;
+
+    // A place in the code that branches can go to
+    static final class Label {
+        private final int index;
+        private int offset = -1;
+
+        private Label(int index) {
+            this.index = index;
+        }
+    }
+
+    // name and superName are internal names, eg. com/mxbi/chip8/CompiledBlock
+    ClassWriter(String name, String superName) {
+        this.name = name;
+        this.superName = superName;
+    }
+
+    // Start writing the method. locals are the types of every local variable slot the method uses from 0 (this) up,
+    // one entry per long: INT, LONG, or an internal class name or array descriptor
+    void method(String methodName, String methodDescriptor, int maxStack, String... locals) {
+        this.methodName = methodName;
+        this.methodDescriptor = methodDescriptor;
+        this.maxStack = maxStack;
+        this.locals = locals;
+    }
+
+    void op(int opcode) {
+        write(opcode);
+    }
+
+    void pushInt(int value) {
+        if (value >= -1 && value <= 5) {
+            write(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            write(BIPUSH);
+            write(value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            write(SIPUSH);
+            writeShort(value);
+        } else {
+            write(LDC_W);
+            writeShort(constant("I" + value, 3, value));
+        }
+    }
+
+    void pushLong(long value) {
+        write(LDC2_W);
+        writeShort(constant("J" + value, 5, value));
+    }
+
+    void pushString(String value) {
+        write(LDC_W);
+        writeShort(entry("S" + value, 8, utf8(value)));
+    }
+
+    // ILOAD, LLOAD, ALOAD, ISTORE or ASTORE of a local
+    void local(int opcode, int slot) {
+        write(opcode);
+        write(slot);
+    }
+
+    // GETFIELD or PUTFIELD
+    void field(int opcode, String owner, String fieldName, String descriptor) {
+        write(opcode);
+        writeShort(member(9, owner, fieldName, descriptor));
+    }
+
+    // INVOKEVIRTUAL, INVOKESPECIAL or INVOKEINTERFACE
+    void invoke(int opcode, String owner, String method, String descriptor) {
+        write(opcode);
+        writeShort(member(opcode == INVOKEINTERFACE ? 11 : 10, owner, method, descriptor));
+        if (opcode == INVOKEINTERFACE) {
+            write(argumentSlots(descriptor) + 1);
+            write(0);
+        }
+    }
+
+    void newObject(String className) {
+        write(NEW);
+        writeShort(classRef(className));
+    }
+
+    Label label() {
+        Label label = new Label(labels.size());
+        labels.add(label);
+        return label;
+    }
+
+    void place(Label label) {
+        label.offset = codeBytes.size();
+    }
+
+    // A branch or GOTO to label, which can be placed before or after
+    void jump(int opcode, Label label) {
+        jumps.add(new int[] {codeBytes.size(), label.index});
+        write(opcode);
+        writeShort(0);
+    }
+
+    byte[] toBytes() {
+        byte[] bytecode = codeBytes.toByteArray();
+        for (int[] jump : jumps) {
+            int delta = labels.get(jump[1]).offset - jump[0];
+            bytecode[jump[0] + 1] = (byte) (delta >> 8);
+            bytecode[jump[0] + 2] = (byte) delta;
+        }
+
+        try {
+            int thisClass = classRef(name);
+            int superClass = classRef(superName);
+            byte[] constructor = constructorCode();
+            byte[] method = methodCode(bytecode);
+            int codeName = utf8("Code");
+            int constructorName = utf8("<init>");
+            int constructorDescriptor = utf8("()V");
+            int runName = utf8(methodName);
+            int runDescriptor = utf8(methodDescriptor);
+            pool.flush();
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(MAJOR_VERSION);
+            out.writeShort(poolCount);
+            poolBytes.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0); // Interfaces
+            out.writeShort(0); // Fields
+            out.writeShort(2);
+            writeMethod(out, constructorName, constructorDescriptor, codeName, constructor);
+            writeMethod(out, runName, runDescriptor, codeName, method);
+            out.writeShort(0); // Attributes
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // Can't happen writing to memory
+        }
+    }
+
+    private byte[] constructorCode() throws IOException {
+        int init = member(10, superName, "<init>", "()V");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeShort(1); // Max stack
+        out.writeShort(1); // Max locals
+        out.writeInt(5);
+        out.write(ALOAD_0);
+        out.write(INVOKESPECIAL);
+        out.writeShort(init);
+        out.write(RETURN);
+        out.writeShort(0); // Exception table
+        out.writeShort(0); // Attributes
+        return bytes.toByteArray();
+    }
+
+    private byte[] methodCode(byte[] bytecode) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        int maxLocals = 0;
+        for (String type : locals) {
+            maxLocals += type.equals(LONG) ? 2 : 1;
+        }
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(bytecode.length);
+        out.write(bytecode);
+        out.writeShort(0); // Exception table
+
+        // One full frame per distinct label offset, in order
+        TreeMap<Integer, Label> targets = new TreeMap<>();
+        for (Label label : labels) {
+            if (label.offset >= 0) {
+                targets.put(label.offset, label);
+            }
+        }
+        if (targets.isEmpty()) {
+            out.writeShort(0);
+            return bytes.toByteArray();
+        }
+        ByteArrayOutputStream frameBytes = new ByteArrayOutputStream();
+        DataOutputStream frames = new DataOutputStream(frameBytes);
+        frames.writeShort(targets.size());
+        int previous = -1;
+        for (int offset : targets.keySet()) {
+            frames.write(255); // full_frame
+            frames.writeShort(offset - previous - 1);
+            previous = offset;
+            frames.writeShort(locals.length);
+            for (String type : locals) {
+                if (type.equals(INT)) {
+                    frames.write(1);
+                } else if (type.equals(LONG)) {
+                    frames.write(4);
+                } else {
+                    frames.write(7);
+                    frames.writeShort(classRef(type));
+                }
+            }
+            frames.writeShort(0); // Empty stack
+        }
+        byte[] table = frameBytes.toByteArray();
+        out.writeShort(1);
+        out.writeShort(utf8("StackMapTable"));
+        out.writeInt(table.length);
+        out.write(table);
+        return bytes.toByteArray();
+    }
+
+    private static void writeMethod(DataOutputStream out, int name, int descriptor, int codeName, byte[] code) throws IOException {
+        out.writeShort(ACC_PUBLIC);
+        out.writeShort(name);
+        out.writeShort(descriptor);
+        out.writeShort(1);
+        out.writeShort(codeName);
+        out.writeInt(code.length);
+        out.write(code);
+    }
+
+    // Argument slots taken by a method descriptor's parameters
+    private static int argumentSlots(String descriptor) {
+        int slots = 0;
+        int i = 1;
+        while (descriptor.charAt(i) != ')') {
+            boolean array = false;
+            while (descriptor.charAt(i) == '[') {
+                array = true;
+                i++;
+            }
+            char c = descriptor.charAt(i);
+            if (c == 'L') {
+                i = descriptor.indexOf(';', i);
+            }
+            slots += !array && (c == 'J' || c == 'D') ? 2 : 1;
+            i++;
+        }
+        return slots;
+    }
+
+    // CONSTANT POOL
+
+    private int utf8(String value) {
+        Integer index = entries.get("U" + value);
+        if (index != null) {
+            return index;
+        }
+        try {
+            pool.write(1);
+            pool.writeUTF(value);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        entries.put("U" + value, poolCount);
+        return poolCount++;
+    }
+
+    private int classRef(String internalName) {
+        return entry("C" + internalName, 7, utf8(internalName));
+    }
+
+    // Fieldref (9), Methodref (10) or InterfaceMethodref (11)
+    private int member(int tag, String owner, String memberName, String descriptor) {
+        String key = "M" + tag + owner + "." + memberName + descriptor;
+        Integer index = entries.get(key);
+        if (index != null) {
+            return index;
+        }
+        int ownerIndex = classRef(owner);
+        int nameAndType = nameAndType(memberName, descriptor);
+        try {
+            pool.write(tag);
+            pool.writeShort(ownerIndex);
+            pool.writeShort(nameAndType);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        entries.put(key, poolCount);
+        return poolCount++;
+    }
+
+    private int nameAndType(String memberName, String descriptor) {
+        String key = "N" + memberName + descriptor;
+        Integer index = entries.get(key);
+        if (index != null) {
+            return index;
+        }
+        int nameIndex = utf8(memberName);
+        int descriptorIndex = utf8(descriptor);
+        try {
+            pool.write(12);
+            pool.writeShort(nameIndex);
+            pool.writeShort(descriptorIndex);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        entries.put(key, poolCount);
+        return poolCount++;
+    }
+
+    // An entry holding a reference to another entry (Class, String)
+    private int entry(String key, int tag, int reference) {
+        Integer index = entries.get(key);
+        if (index != null) {
+            return index;
+        }
+        try {
+            pool.write(tag);
+            pool.writeShort(reference);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        entries.put(key, poolCount);
+        return poolCount++;
+    }
+
+    // Integer (3) or Long (5), which takes up two entries
+    private int constant(String key, int tag, long value) {
+        Integer index = entries.get(key);
+        if (index != null) {
+            return index;
+        }
+        try {
+            pool.write(tag);
+            if (tag == 5) {
+                pool.writeLong(value);
+            } else {
+                pool.writeInt((int) value);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        index = poolCount;
+        entries.put(key, index);
+        poolCount += tag == 5 ? 2 : 1;
+        return index;
+    }
+
+    private void write(int b) {
+        codeBytes.write(b);
+    }
+
+    private void writeShort(int s) {
+        codeBytes.write(s >> 8);
+        codeBytes.write(s);
+    }
+}
@@ -0,0 +1,12 @@
+package com.mxbi.chip8;
+
+// A basic block compiled to JVM bytecode (see BlockCompiler). Runs the instructions in the block against the machine
+// state, leaving PC pointing at whatever comes next, and returns how many it ran: fewer than the whole block when a
+// skip leaves it early, several passes' worth when the block loops back to its own start, though never more than
+// budget beyond the first pass. time is the emulated time of the first instruction.
+// Implementations are stateless and shared between CPUs.
+// An abstract class rather than an interface: every block is its own class, and a virtual call through a vtable is
+// cheaper than an interface call once CPU.executeCompiled() has seen more than a couple of them
+public abstract class CompiledBlock {
+    public abstract int run(CPU cpu, long time, int budget);
+}
@@ -1,45 +1,34 @@
 package com.mxbi.chip8;
 
 public class ConsoleDisplay implements DisplayInterface, KeyboardInterface {
-    boolean[][] disp = new boolean[64][32];
+    final FrameBuffer disp = new FrameBuffer();
 
     public ConsoleDisplay() {
 
     }
 
-    public void clear() {
-        disp = new boolean[64][32];
+    @Override
+    public FrameBuffer getFrameBuffer() {
+        return disp;
     }
 
-    private boolean getBit(short num, int bit) {
-        return ((num >> bit) & 1) == 1;
+    public void clear() {
+        disp.clear();
     }
 
     public boolean draw(short[] data, int x0, int y0) {
-        boolean flipped = false;
+        return disp.draw(data, x0, y0);
+    }
 
-        for (int y=0; y<data.length; y++) {
-            for (int x = 0; x < 8; x++) {
-                boolean bit = getBit(data[y], 7 - x);
-                int xco = (x0 + x) % 64;
-                int yco = (y0 + y) % 32;
-                if (bit) {
-                    if (disp[xco][yco]) {
-                        disp[xco][yco] = false;
-                        flipped = true;
-                    } else {
-                        disp[xco][yco] = true;
-                    }
-                }
-            }
-        }
-        return flipped;
+    @Override
+    public boolean draw(Memory memory, int offset, int length, int x0, int y0) {
+        return disp.draw(memory, offset, length, x0, y0);
     }
 
     private void output() {
         for (int y=0; y<32; y++) {
             for (int x=0; x<64; x++) {
-                System.out.print(disp[x][y] ? '█' : ' ');
+                System.out.print(disp.get(x, y) ? '█' : ' ');
             }
             System.out.println();
         }
@@ -47,7 +36,7 @@ public class ConsoleDisplay implements DisplayInterface, KeyboardInterface {
 
     @Override
     public void check() {
-        // Draw on every cycle for now
+        // Draw every frame
         output();
     }
 
@@ -58,7 +47,7 @@ public class ConsoleDisplay implements DisplayInterface, KeyboardInterface {
     }
 
     @Override
-    public int waitForAnyKey() {
+    public int pollAnyKey() {
         System.out.println("waited for any key!");
         return 0;
     }
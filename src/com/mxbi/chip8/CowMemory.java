@@ -0,0 +1,95 @@
+package com.mxbi.chip8;
+
+import java.util.Arrays;
+
+// Memory seeded copy-on-write from a shared image that nobody modifies (see RomImage).
+// The image is split into PAGE_SIZE pages, and each machine starts with a page table pointing at the shared ones.
+// The first write that actually changes a byte copies just that page, so machines only pay for the pages they
+// modify (usually one or two, wherever Fx33 and Fx55 write). Writing a byte's current value copies nothing.
+// Reads are on the hot path: they always go through the page table, with no check for whether a page is copied.
+public class CowMemory implements Memory {
+    static final int PAGE_BITS = 8;
+    static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private final byte[][] pages;
+    private int copied = 0; // Bit n is set once page n is our own, Memory.SIZE is 16 pages
+
+    // shared must never be modified afterwards, see split()
+    CowMemory(byte[][] shared) {
+        pages = shared.clone();
+    }
+
+    // An image as the pages CowMemory shares
+    static byte[][] split(byte[] image) {
+        byte[][] pages = new byte[image.length >>> PAGE_BITS][];
+        for (int i=0; i<pages.length; i++) {
+            pages[i] = Arrays.copyOfRange(image, i << PAGE_BITS, (i + 1) << PAGE_BITS);
+        }
+        return pages;
+    }
+
+    @Override
+    public int size() {
+        return pages.length << PAGE_BITS;
+    }
+
+    @Override
+    public int get(int address) {
+        return pages[address >>> PAGE_BITS][address & PAGE_MASK] & 0xFF;
+    }
+
+    @Override
+    public void set(int address, int value) {
+        int page = address >>> PAGE_BITS;
+        if (pages[page][address & PAGE_MASK] == (byte) value) {
+            return;
+        }
+        ownPage(page)[address & PAGE_MASK] = (byte) value;
+    }
+
+    @Override
+    public void read(int address, byte[] dest, int offset, int length) {
+        while (length > 0) {
+            int chunk = Math.min(length, PAGE_SIZE - (address & PAGE_MASK));
+            System.arraycopy(pages[address >>> PAGE_BITS], address & PAGE_MASK, dest, offset, chunk);
+            address += chunk;
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    // A page at a time, only copying pages the data actually changes (eg. the CPU writing the font it already has)
+    @Override
+    public void write(int address, byte[] src, int offset, int length) {
+        while (length > 0) {
+            int page = address >>> PAGE_BITS;
+            int start = address & PAGE_MASK;
+            int chunk = Math.min(length, PAGE_SIZE - start);
+            if (Arrays.mismatch(pages[page], start, start + chunk, src, offset, offset + chunk) >= 0) {
+                System.arraycopy(src, offset, ownPage(page), start, chunk);
+            }
+            address += chunk;
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    private byte[] ownPage(int page) {
+        if ((copied & (1 << page)) == 0) {
+            pages[page] = pages[page].clone();
+            copied |= 1 << page;
+        }
+        return pages[page];
+    }
+
+    // Whether we've made our own copy of any page yet
+    public boolean isCopied() {
+        return copied != 0;
+    }
+
+    // Bytes of RAM this machine has copied rather than shared
+    public int copiedBytes() {
+        return Integer.bitCount(copied) << PAGE_BITS;
+    }
+}
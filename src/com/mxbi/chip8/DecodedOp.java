@@ -0,0 +1,67 @@
+package com.mxbi.chip8;
+
+// A predecoded instruction: which instruction it is plus all operands extracted up front, so handlers never have to
+// pick apart the instruction word again. See CPU.decode()
+final class DecodedOp {
+    // Kinds are small and dense so CPU.executeDecoded() compiles to a jump table. A call through a per-instruction
+    // handler object looked cheaper, but any real loop mixes enough instructions to make it megamorphic
+    static final int OP_00E0 = 0;
+    static final int OP_00EE = 1;
+    static final int OP_0nnn = 2;
+    static final int OP_1nnn = 3;
+    static final int OP_2nnn = 4;
+    static final int OP_3xkk = 5;
+    static final int OP_4xkk = 6;
+    static final int OP_5xy0 = 7;
+    static final int OP_6xkk = 8;
+    static final int OP_7xkk = 9;
+    static final int OP_8xy0 = 10;
+    static final int OP_8xy1 = 11;
+    static final int OP_8xy2 = 12;
+    static final int OP_8xy3 = 13;
+    static final int OP_8xy4 = 14;
+    static final int OP_8xy5 = 15;
+    static final int OP_8xy6 = 16;
+    static final int OP_8xy7 = 17;
+    static final int OP_8xyE = 18;
+    static final int OP_9xy0 = 19;
+    static final int OP_Annn = 20;
+    static final int OP_Bnnn = 21;
+    static final int OP_Cxkk = 22;
+    static final int OP_Dxyn = 23;
+    static final int OP_Ex9E = 24;
+    static final int OP_ExA1 = 25;
+    static final int OP_Fx07 = 26;
+    static final int OP_Fx0A = 27;
+    static final int OP_Fx15 = 28;
+    static final int OP_Fx18 = 29;
+    static final int OP_Fx1E = 30;
+    static final int OP_Fx29 = 31;
+    static final int OP_Fx33 = 32;
+    static final int OP_Fx55 = 33;
+    static final int OP_Fx65 = 34;
+    static final int INVALID = 35; // Only throws once it's actually executed, since data gets decoded too
+
+    final int instr;
+    final int kind;
+    // Reads the keypad or sets a timer, so CPU.executeDecoded() runs it as a step of its own: the keypad is read at
+    // the step's cycle, and a timer moves where the next step has to end
+    final boolean alone;
+
+    final int x;   // 0x0X00
+    final int y;   // 0x00Y0
+    final int n;   // 0x000N
+    final int kk;  // 0x00KK
+    final int nnn; // 0x0NNN
+
+    DecodedOp(int instr, int kind) {
+        this.instr = instr;
+        this.kind = kind;
+        this.alone = kind == OP_Ex9E || kind == OP_ExA1 || kind == OP_Fx0A || kind == OP_Fx15 || kind == OP_Fx18;
+        this.x = CPU.getx(instr);
+        this.y = CPU.gety(instr);
+        this.n = instr & 0x000F;
+        this.kk = CPU.getk(instr);
+        this.nnn = CPU.getn(instr);
+    }
+}
@@ -0,0 +1,355 @@
+package com.mxbi.chip8;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+// Runs a candidate engine in lockstep with the reference interpreter (CPU.execute()) on every ROM in a directory,
+// in parallel across all cores. Both machines get the same ROM, seed and input. The candidate runs up to step
+// instructions at a time (so whole compiled blocks and superinstructions get used), then the reference catches up
+// one instruction at a time and the two states are compared: PC, I, V, SP, stack, timers, frames, RAM and the screen.
+// A ROM stops at its first divergence, which is reported with the state diff and the reference's last instructions.
+//
+// Input comes from a recording of the ROM in the inputs directory (any InputRecording with a matching ROM hash),
+// or failing that from random key presses generated from the seed, so key-driven code gets exercised too.
+// Usage: DifferentialTester <rom directory> <cycles per ROM> [--engine=PREDECODED|JIT] [--no-fusion] [--step=N]
+//        [--seed=N] [--inputs=<directory>]
+//        DifferentialTester --self-check (checks the state comparison itself)
+public class DifferentialTester {
+    private static final int TRACE_LENGTH = 16; // Reference instructions shown with a divergence
+
+    public static class Options {
+        public CPU.Engine engine = CPU.Engine.JIT;
+        public boolean fusion = true;
+        public int step = Jit.MAX_CHAIN_INSTRUCTIONS; // Most instructions the candidate runs between comparisons
+        public long seed = 0;
+        public File inputs = null;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (String arg : args) {
+                if (arg.startsWith("--engine=")) {
+                    options.engine = CPU.Engine.valueOf(arg.substring("--engine=".length()));
+                } else if (arg.equals("--no-fusion")) {
+                    options.fusion = false;
+                } else if (arg.startsWith("--step=")) {
+                    options.step = Integer.parseInt(arg.substring("--step=".length()));
+                } else if (arg.startsWith("--seed=")) {
+                    options.seed = Long.parseLong(arg.substring("--seed=".length()));
+                } else if (arg.startsWith("--inputs=")) {
+                    options.inputs = new File(arg.substring("--inputs=".length()));
+                }
+            }
+            if (options.step < 1) {
+                throw new IllegalArgumentException("Step must be at least 1 instruction, got " + options.step);
+            }
+            return options;
+        }
+    }
+
+    public static class Result {
+        public final String rom;
+        public final long cycles; // Cycles both machines agreed for
+        public final String divergence; // null if they never diverged
+
+        Result(String rom, long cycles, String divergence) {
+            this.rom = rom;
+            this.cycles = cycles;
+            this.divergence = divergence;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-24s cycles=%-10d %s", rom, cycles, divergence == null ? "OK" : "DIVERGED\n" + divergence);
+        }
+    }
+
+    // One side of the comparison
+    private static class Machine {
+        final CPU cpu;
+        boolean finished = false;
+        RuntimeException error;
+        final byte[] ram = new byte[Memory.SIZE];
+        final HeadlessDisplay display = new HeadlessDisplay() {
+            @Override
+            public void executionFinished() {
+                finished = true;
+            }
+        };
+
+        Machine(RomImage rom, InputRecording input, CPU.Engine engine, boolean fusion) {
+            InputReplay replay = new InputReplay(input);
+            cpu = new CPU(rom.newMemory(), display, replay, CPU.UNLIMITED);
+            cpu.setEngine(engine);
+            cpu.setFusion(fusion);
+            replay.attach(cpu);
+        }
+
+        int instructionAtPC() {
+            int pc = cpu.PC & 0xFFFF;
+            return pc + 1 < cpu.ram.size() ? (cpu.ram.get(pc) << 8) | cpu.ram.get(pc + 1) : 0;
+        }
+
+        boolean stopped() {
+            return finished || error != null;
+        }
+
+        void run(long maxCycles) throws InterruptedException {
+            try {
+                cpu.run(maxCycles);
+            } catch (RuntimeException e) {
+                error = e;
+            }
+        }
+    }
+
+    public static Result test(String name, RomImage rom, InputRecording input, long maxCycles, Options options) throws InterruptedException {
+        Machine reference = new Machine(rom, input, CPU.Engine.INTERPRETER, false);
+        Machine candidate = new Machine(rom, input, options.engine, options.fusion);
+
+        // Last reference instructions, as cycle, PC and instruction
+        long[] trace = new long[TRACE_LENGTH * 3];
+        int traced = 0;
+
+        long agreed = 0;
+        while (agreed < maxCycles && !candidate.stopped()) {
+            candidate.run(Math.min(options.step, maxCycles - agreed));
+            long target = candidate.cpu.getCycles();
+
+            // An instruction that throws isn't counted, so after an error the reference has to try the one at target too
+            while ((reference.cpu.getCycles() < target || candidate.error != null && reference.cpu.getCycles() == target)
+                    && !reference.stopped()) {
+                int slot = (traced++ % TRACE_LENGTH) * 3;
+                trace[slot] = reference.cpu.getCycles();
+                trace[slot + 1] = reference.cpu.PC;
+                trace[slot + 2] = reference.instructionAtPC();
+                reference.run(1);
+            }
+
+            reference.cpu.fireDueEvents();
+            candidate.cpu.fireDueEvents();
+            String diff = diff(reference, candidate);
+            if (diff != null) {
+                StringBuilder sb = new StringBuilder();
+                sb.append(String.format("  between cycles %d and %d%n", agreed, target));
+                sb.append(diff);
+                sb.append("  reference trace:\n");
+                for (int i=Math.max(0, traced - TRACE_LENGTH); i<traced; i++) {
+                    int slot = (i % TRACE_LENGTH) * 3;
+                    int instr = (int) trace[slot + 2];
+                    sb.append(String.format("    %10d  %03X  %04X  %s%n", trace[slot], trace[slot + 1], instr, Disassembler.disassemble(instr)));
+                }
+                return new Result(name, agreed, sb.toString());
+            }
+            if (target == agreed) {
+                break; // Neither machine can get any further (eg. both stuck on the same instruction)
+            }
+            agreed = target;
+        }
+        return new Result(name, agreed, null);
+    }
+
+    // Differences between the two machines, one per line, or null if there aren't any
+    private static String diff(Machine reference, Machine candidate) {
+        CPU a = reference.cpu;
+        CPU b = candidate.cpu;
+        StringBuilder sb = new StringBuilder();
+        field(sb, "cycles", a.getCycles(), b.getCycles());
+        field(sb, "PC", a.PC & 0xFFFF, b.PC & 0xFFFF);
+        field(sb, "I", a.I & 0xFFFF, b.I & 0xFFFF);
+        for (int i=0; i<16; i++) {
+            field(sb, "V" + Integer.toHexString(i).toUpperCase(), a.V[i] & 0xFF, b.V[i] & 0xFF);
+        }
+        field(sb, "SP", a.SP, b.SP);
+        for (int i=0; i<16; i++) {
+            field(sb, "stack[" + i + "]", a.stack[i] & 0xFFFF, b.stack[i] & 0xFFFF);
+        }
+        field(sb, "delay", a.delay.getTimer(), b.delay.getTimer());
+        field(sb, "delay next tick", a.delay.getNextDecrement(), b.delay.getNextDecrement());
+        field(sb, "sound", a.sound.getTimer(), b.sound.getTimer());
+        field(sb, "sound next tick", a.sound.getNextDecrement(), b.sound.getNextDecrement());
+        field(sb, "next frame", a.nextFrameTime, b.nextFrameTime);
+        field(sb, "screen hash", reference.display.frameHash(), candidate.display.frameHash());
+
+        a.ram.read(0, reference.ram, 0, Memory.SIZE);
+        b.ram.read(0, candidate.ram, 0, Memory.SIZE);
+        int address = Arrays.mismatch(reference.ram, candidate.ram);
+        if (address >= 0) {
+            field(sb, String.format("ram[%03X]", address), reference.ram[address] & 0xFF, candidate.ram[address] & 0xFF);
+        }
+
+        // Covers one side stopping cleanly while the other errors, as well as different errors
+        if (!Objects.equals(describeStop(reference), describeStop(candidate))) {
+            sb.append(String.format("  finished: %s vs %s%n", describeStop(reference), describeStop(candidate)));
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+    private static void field(StringBuilder sb, String name, long reference, long candidate) {
+        if (reference != candidate) {
+            sb.append(String.format("  %-16s reference=%X candidate=%X%n", name, reference, candidate));
+        }
+    }
+
+    private static String describeStop(Machine machine) {
+        return machine.error != null ? machine.error.toString() : machine.finished ? "yes" : "no";
+    }
+
+    // Checks diff() itself on machines that stopped in different ways: a clean stop (a jump to itself) against an
+    // error, both ways round, and against another clean stop. Then checks that every engine stops on an error at the
+    // same cycle as the interpreter. Returns a description of what went wrong, or null
+    static String selfCheck() throws InterruptedException {
+        RomImage rom = new RomImage("self-check", new byte[] {0x12, 0x00});
+        InputRecording input = randomInput(0, 0);
+        Machine[] clean = new Machine[2];
+        for (int i=0; i<clean.length; i++) {
+            clean[i] = new Machine(rom, input, CPU.Engine.INTERPRETER, false);
+            clean[i].run(1);
+            if (!clean[i].finished) {
+                return "jump to itself didn't stop the machine";
+            }
+        }
+        Machine errored = new Machine(rom, input, CPU.Engine.INTERPRETER, false);
+        errored.run(1);
+        errored.finished = false;
+        errored.error = new IllegalStateException("0x00EE: Tried to pop empty stack");
+
+        if (diff(clean[0], clean[1]) != null) {
+            return "two clean stops reported as diverging";
+        }
+        if (diff(clean[0], errored) == null) {
+            return "clean stop against an error not reported";
+        }
+        if (diff(errored, clean[0]) == null) {
+            return "error against a clean stop not reported";
+        }
+        return checkErrorStops(input);
+    }
+
+    // ROMs that throw partway through a step. The instructions before the one that throws still ran, so they have to
+    // be counted in the cycles whichever engine ran them
+    private static final RomImage[] ERROR_ROMS = {
+            // 6001, 7001 four times, then 8008, which doesn't exist
+            new RomImage("invalid instruction", new byte[] {
+                    0x60, 0x01, 0x70, 0x01, 0x70, 0x01, 0x70, 0x01, 0x70, 0x01, (byte) 0x80, 0x08}),
+            // I = F81, then a loop adding 2 to I and loading V0-V1 from there, until that reads past the end of ram.
+            // The JIT has compiled the loop long before then
+            new RomImage("read past ram in a loop", new byte[] {
+                    0x62, 0x02, (byte) 0xAF, (byte) 0x81, (byte) 0xF2, 0x1E, (byte) 0xF1, 0x65, 0x12, 0x04}),
+    };
+
+    private static String checkErrorStops(InputRecording input) throws InterruptedException {
+        for (RomImage rom : ERROR_ROMS) {
+            Machine reference = new Machine(rom, input, CPU.Engine.INTERPRETER, false);
+            reference.run(ERROR_STOP_CYCLES);
+            if (reference.error == null) {
+                return rom.name + ": the interpreter didn't stop with an error";
+            }
+            for (CPU.Engine engine : CPU.Engine.values()) {
+                Options options = new Options();
+                options.engine = engine;
+                Result result = test(rom.name, rom, input, ERROR_STOP_CYCLES, options);
+                if (result.divergence != null) {
+                    return rom.name + ": " + engine + " stopped differently\n" + result.divergence;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static final long ERROR_STOP_CYCLES = 10000;
+
+    // Random key presses: a new set of 0-2 held keys every few hundred cycles, through to maxCycles
+    static InputRecording randomInput(long seed, long maxCycles) {
+        Random random = new Random(seed);
+        InputRecording input = new InputRecording();
+        input.seed = seed;
+        input.endCycle = maxCycles;
+        for (long cycle = random.nextInt(1000); cycle < maxCycles; cycle += 1 + random.nextInt(1000)) {
+            int keys = 0;
+            for (int i=random.nextInt(3); i>0; i--) {
+                keys |= 1 << random.nextInt(16);
+            }
+            input.add(cycle, keys);
+        }
+        return input;
+    }
+
+    public static List<Result> testAll(RomCatalog catalog, long maxCycles, int threads, Options options) throws IOException {
+        Map<String, InputRecording> recordings = new HashMap<>();
+        File[] files = options.inputs == null ? null : options.inputs.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                try {
+                    InputRecording recording = InputRecording.load(file);
+                    recordings.put(recording.romHash, recording);
+                } catch (IOException e) {
+                    // Not a recording, skip it
+                }
+            }
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        List<Future<Result>> futures = new ArrayList<>();
+        for (String name : catalog.names()) {
+            RomImage rom = catalog.byName(name);
+            InputRecording recorded = recordings.get(rom.hash);
+            InputRecording input = recorded != null ? recorded : randomInput(options.seed, maxCycles);
+            long cycles = recorded != null ? Math.min(maxCycles, recorded.endCycle) : maxCycles;
+            futures.add(pool.submit(() -> test(name, rom, input, cycles, options)));
+        }
+
+        List<Result> results = new ArrayList<>();
+        for (Future<Result> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (Exception e) {
+                throw new IllegalStateException("Differential test failed", e);
+            }
+        }
+        pool.shutdown();
+        return results;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (Arrays.asList(args).contains("--self-check")) {
+            String failure = selfCheck();
+            System.out.println(failure == null ? "Self check passed" : "Self check failed: " + failure);
+            System.exit(failure == null ? 0 : 1);
+        }
+        Options options = Options.parse(args);
+        args = Arrays.stream(args).filter(arg -> !arg.startsWith("--")).toArray(String[]::new);
+
+        if (args.length < 2) {
+            System.err.println("Usage: DifferentialTester <rom directory> <cycles per ROM> [--engine=PREDECODED|JIT] "
+                    + "[--no-fusion] [--step=N] [--seed=N] [--inputs=<directory>] | --self-check");
+            System.exit(1);
+        }
+        RomCatalog catalog = RomCatalog.scan(new File(args[0]));
+        long maxCycles = Long.parseLong(args[1]);
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        long t0 = System.nanoTime();
+        List<Result> results = testAll(catalog, maxCycles, threads, options);
+        long wall = System.nanoTime() - t0;
+
+        int diverged = 0;
+        for (Result result : results) {
+            System.out.println(result);
+            if (result.divergence != null) {
+                diverged++;
+            }
+        }
+        System.out.println(String.format("%d ROMs, %d diverged, %s against the interpreter in %.2fms",
+                results.size(), diverged, options.engine, wall / 1e6));
+        System.exit(diverged == 0 ? 0 : 1);
+    }
+}
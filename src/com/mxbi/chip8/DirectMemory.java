@@ -0,0 +1,38 @@
+package com.mxbi.chip8;
+
+import java.nio.ByteBuffer;
+
+// Memory living outside the Java heap. Absolute get/put never touch the buffer's position, so no state is shared
+// between calls other than the bytes themselves.
+public class DirectMemory implements Memory {
+    private final ByteBuffer buffer;
+
+    public DirectMemory(int size) {
+        buffer = ByteBuffer.allocateDirect(size);
+    }
+
+    @Override
+    public int size() {
+        return buffer.capacity();
+    }
+
+    @Override
+    public int get(int address) {
+        return buffer.get(address) & 0xFF;
+    }
+
+    @Override
+    public void set(int address, int value) {
+        buffer.put(address, (byte) value);
+    }
+
+    @Override
+    public void read(int address, byte[] dest, int offset, int length) {
+        buffer.get(address, dest, offset, length);
+    }
+
+    @Override
+    public void write(int address, byte[] src, int offset, int length) {
+        buffer.put(address, src, offset, length);
+    }
+}
@@ -0,0 +1,67 @@
+package com.mxbi.chip8;
+
+// Turns instructions into the usual (Cowgod-style) CHIP-8 mnemonics, eg. 0x6A02 -> "LD VA, 0x02"
+public class Disassembler {
+    public static String disassemble(int instr) {
+        int x = CPU.getx(instr);
+        int y = CPU.gety(instr);
+        int kk = CPU.getk(instr);
+        int nnn = CPU.getn(instr);
+        String vx = String.format("V%X", x);
+        String vy = String.format("V%X", y);
+
+        switch ((instr & 0xF000) >>> 12) {
+            case 0x0:
+                if (instr == 0x00E0) return "CLS";
+                if (instr == 0x00EE) return "RET";
+                return String.format("SYS 0x%03X", nnn);
+            case 0x1: return String.format("JP 0x%03X", nnn);
+            case 0x2: return String.format("CALL 0x%03X", nnn);
+            case 0x3: return String.format("SE %s, 0x%02X", vx, kk);
+            case 0x4: return String.format("SNE %s, 0x%02X", vx, kk);
+            case 0x5: return (instr & 0xF) == 0 ? "SE " + vx + ", " + vy : data(instr);
+            case 0x6: return String.format("LD %s, 0x%02X", vx, kk);
+            case 0x7: return String.format("ADD %s, 0x%02X", vx, kk);
+            case 0x8:
+                switch (instr & 0xF) {
+                    case 0x0: return "LD " + vx + ", " + vy;
+                    case 0x1: return "OR " + vx + ", " + vy;
+                    case 0x2: return "AND " + vx + ", " + vy;
+                    case 0x3: return "XOR " + vx + ", " + vy;
+                    case 0x4: return "ADD " + vx + ", " + vy;
+                    case 0x5: return "SUB " + vx + ", " + vy;
+                    case 0x6: return "SHR " + vx + ", " + vy;
+                    case 0x7: return "SUBN " + vx + ", " + vy;
+                    case 0xE: return "SHL " + vx + ", " + vy;
+                    default: return data(instr);
+                }
+            case 0x9: return (instr & 0xF) == 0 ? "SNE " + vx + ", " + vy : data(instr);
+            case 0xA: return String.format("LD I, 0x%03X", nnn);
+            case 0xB: return String.format("JP V0, 0x%03X", nnn);
+            case 0xC: return String.format("RND %s, 0x%02X", vx, kk);
+            case 0xD: return String.format("DRW %s, %s, %d", vx, vy, instr & 0xF);
+            case 0xE:
+                if (kk == 0x9E) return "SKP " + vx;
+                if (kk == 0xA1) return "SKNP " + vx;
+                return data(instr);
+            default:
+                switch (kk) {
+                    case 0x07: return "LD " + vx + ", DT";
+                    case 0x0A: return "LD " + vx + ", K";
+                    case 0x15: return "LD DT, " + vx;
+                    case 0x18: return "LD ST, " + vx;
+                    case 0x1E: return "ADD I, " + vx;
+                    case 0x29: return "LD F, " + vx;
+                    case 0x33: return "LD B, " + vx;
+                    case 0x55: return "LD [I], " + vx;
+                    case 0x65: return "LD " + vx + ", [I]";
+                    default: return data(instr);
+                }
+        }
+    }
+
+    // Not an instruction, show it as a data word
+    private static String data(int instr) {
+        return String.format("DW 0x%04X", instr);
+    }
+}
@@ -6,7 +6,32 @@ public interface DisplayInterface {
     // Draw should return true if any bits are _unset_ by the sprite, and false otherwise
     boolean draw(short[] data, int x, int y);
 
+    // Same as above, but reads the sprite straight out of emulator memory (length rows starting at offset) without copying.
+    // Rows past the end of memory are drawn as blank, like the copy would have been.
+    // Displays should override this, the default only exists so displays implementing just the old overload keep working.
+    default boolean draw(Memory memory, int offset, int length, int x, int y) {
+        short[] data = new short[length];
+        for (int i=0; i<length && offset + i < memory.size(); i++) {
+            data[i] = (short) memory.get(offset + i);
+        }
+        return draw(data, x, y);
+    }
+
+    // The screen contents, used for snapshots (see Rewind). Displays without a FrameBuffer return null
+    default FrameBuffer getFrameBuffer() {
+        return null;
+    }
+
     void check();
 
+    // Called once per emulated frame (Timer.updateRate times a second of emulated time) with the emulated time in
+    // nanoseconds, which only matches the wall clock at 1x speed
+    default void check(long nanoTime) {
+        check();
+    }
+
+    // Called roughly once a second with the measured (not emulated) execution speed
+    default void reportSpeed(double instructionsPerSecond) {};
+
     default void executionFinished() {};
 }
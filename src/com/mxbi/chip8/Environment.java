@@ -0,0 +1,211 @@
+package com.mxbi.chip8;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+// A batch of headless machines running the same ROM, for driving from code (eg. reinforcement learning) rather than
+// a window. Each step() gives every machine a keypad action, runs it for a number of emulated frames and fills in
+// the observation arrays: the screens, rewards and done flags. Machines are split into one slice per worker thread.
+//
+// The reward for a step is how much the bytes at the reward addresses went up over it (eg. the digits of a score).
+// A machine is done once its program finishes or hits an invalid instruction, and stays done until it's reset.
+// Observation arrays are allocated once and overwritten by every reset() and step()
+public class Environment implements AutoCloseable {
+    public static final int FRAME_LONGS = FrameBuffer.HEIGHT; // Longs per screen in getFrames(), one per row
+
+    private final RomImage rom;
+    private final int[] rewardAddresses;
+    private final Machine[] machines;
+    private CPU.Engine engine = CPU.Engine.INTERPRETER;
+
+    private final long[] frames;
+    private final int[] rewards;
+    private final boolean[] done;
+
+    private final ForkJoinPool pool;
+    private final List<Callable<Void>> slices = new ArrayList<>();
+    private int[] actions;
+    private int framesPerStep;
+
+    // One machine, and the keyboard that holds its action for the step
+    private static class Machine implements KeyboardInterface {
+        CPU cpu;
+        boolean finished;
+        long frame; // Frames run since the last reset
+        int keys;
+        final HeadlessDisplay display = new HeadlessDisplay() {
+            @Override
+            public void executionFinished() {
+                finished = true;
+            }
+        };
+
+        @Override
+        public boolean isPressed(int key) {
+            return key < 16 && (keys & (1 << key)) != 0;
+        }
+
+        @Override
+        public int pollAnyKey() {
+            return keys == 0 ? -1 : Integer.numberOfTrailingZeros(keys);
+        }
+
+        @Override
+        public int getPressedKeys() {
+            return keys;
+        }
+
+        // Keys only change between steps, so a machine halted on Fx0A skips to the end of the step
+        @Override
+        public long nextChange(long cycle) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    public Environment(RomImage rom, int count, int[] rewardAddresses, int threads) {
+        if (count < 1) {
+            throw new IllegalArgumentException("Need at least one machine, got " + count);
+        }
+        for (int address : rewardAddresses) {
+            if (address < 0 || address >= Memory.SIZE) {
+                throw new IllegalArgumentException("Reward address out of range: " + address);
+            }
+        }
+        this.rom = rom;
+        this.rewardAddresses = rewardAddresses.clone();
+        machines = new Machine[count];
+        for (int i=0; i<count; i++) {
+            machines[i] = new Machine();
+        }
+        frames = new long[count * FRAME_LONGS];
+        rewards = new int[count];
+        done = new boolean[count];
+
+        threads = Math.max(1, Math.min(threads, count));
+        pool = new ForkJoinPool(threads);
+        for (int t=0; t<threads; t++) {
+            int from = count * t / threads;
+            int to = count * (t + 1) / threads;
+            slices.add(() -> {
+                for (int i=from; i<to; i++) {
+                    step(i);
+                }
+                return null;
+            });
+        }
+        reset(0);
+    }
+
+    public int size() {
+        return machines.length;
+    }
+
+    // Takes effect from the next reset
+    public void setEngine(CPU.Engine engine) {
+        this.engine = engine;
+    }
+
+    // Restart every machine, machine i with seed + i for its random numbers
+    public void reset(long seed) {
+        for (int i=0; i<machines.length; i++) {
+            reset(i, seed + i);
+        }
+    }
+
+    // Restart one machine from the ROM (eg. once it's done), with no keys held
+    public void reset(int machine, long seed) {
+        Machine m = machines[machine];
+        m.cpu = new CPU(rom.newMemory(), m.display, m, CPU.UNLIMITED);
+        m.cpu.setEngine(engine);
+        m.cpu.setSeed(seed);
+        m.display.clear();
+        m.finished = false;
+        m.frame = 0;
+        m.keys = 0;
+        rewards[machine] = 0;
+        done[machine] = false;
+        observe(machine);
+    }
+
+    // Run every machine that isn't done for framesPerStep frames, holding down the keys in actions[i] (bit n is
+    // key n) on machine i. Done machines are left as they are
+    public void step(int[] actions, int framesPerStep) throws InterruptedException {
+        if (actions.length != machines.length) {
+            throw new IllegalArgumentException("Need an action for each of the " + machines.length + " machines, got " + actions.length);
+        }
+        if (framesPerStep < 1) {
+            throw new IllegalArgumentException("Need to run at least one frame, got " + framesPerStep);
+        }
+        this.actions = actions;
+        this.framesPerStep = framesPerStep;
+        try {
+            for (Future<Void> future : pool.invokeAll(slices)) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Environment step failed", e.getCause());
+        }
+    }
+
+    private void step(int machine) throws InterruptedException {
+        Machine m = machines[machine];
+        if (done[machine]) {
+            rewards[machine] = 0;
+            return;
+        }
+
+        int before = 0;
+        for (int address : rewardAddresses) {
+            before += m.cpu.ram.get(address);
+        }
+
+        // Frame n is shown at the first cycle at or after n frames' worth of emulated time. Run up to just before
+        // it, so the screen is what that frame shows
+        m.keys = actions[machine] & 0xFFFF;
+        m.frame += framesPerStep;
+        long target = (m.frame * Timer.timeBetweenUpdates + CPU.minClockWaitTime - 1) / CPU.minClockWaitTime;
+        try {
+            m.cpu.run(target - m.cpu.getCycles());
+        } catch (RuntimeException e) {
+            m.finished = true; // Invalid instruction, the program can't go any further
+        }
+
+        int after = 0;
+        for (int address : rewardAddresses) {
+            after += m.cpu.ram.get(address);
+        }
+        rewards[machine] = after - before;
+        done[machine] = m.finished;
+        observe(machine);
+    }
+
+    private void observe(int machine) {
+        FrameBuffer screen = machines[machine].display.getFrameBuffer();
+        int offset = machine * FRAME_LONGS;
+        for (int y=0; y<FrameBuffer.HEIGHT; y++) {
+            frames[offset + y] = screen.getRow(y);
+        }
+    }
+
+    // Screens after the last step, FRAME_LONGS rows per machine. Bit 63 of a row is its leftmost pixel
+    public long[] getFrames() {
+        return frames;
+    }
+
+    public int[] getRewards() {
+        return rewards;
+    }
+
+    public boolean[] getDone() {
+        return done;
+    }
+
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+}
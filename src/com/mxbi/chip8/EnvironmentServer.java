@@ -0,0 +1,217 @@
+package com.mxbi.chip8;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+// Serves Environment over a loopback TCP socket, so trainers in other processes (and languages) can use it.
+// Each connection gets its own Environment and thread. Buffers are allocated when the Environment is created
+// and reused for every step after that.
+//
+// Protocol (big-endian), one response per request:
+//   CREATE: u8 1, u32 machines, u32 threads (0 for one per core), u8 engine (CPU.Engine ordinal),
+//           u16 length + UTF-8 ROM name (a file in the ROM directory, or its SHA-256), u16 count + u16 reward addresses
+//           -> u8 status, u32 machines
+//   RESET:  u8 2, u64 seed -> u8 status, observation
+//   STEP:   u8 3, u16 frames, u16 action per machine (bit n holds key n) -> u8 status, observation
+// An observation is FrameBuffer.HEIGHT u64 rows per machine (bit 63 is the leftmost pixel), then an i32 reward
+// per machine, then a u8 done flag per machine. A failed request gets status 1, a u16 length and a UTF-8 message
+// instead, and the connection stays usable. CREATE takes at most MAX_MACHINES machines, MAX_THREADS threads and
+// Memory.SIZE reward addresses.
+// Usage: EnvironmentServer <rom directory> [port]
+public class EnvironmentServer {
+    static final int CREATE = 1;
+    static final int RESET = 2;
+    static final int STEP = 3;
+
+    static final int OK = 0;
+    static final int ERROR = 1;
+
+    public static final int DEFAULT_PORT = 8642;
+
+    // Limits on what a client can ask for, so a bad CREATE gets an error rather than running the server out of memory
+    static final int MAX_MACHINES = 1 << 14;
+    static final int MAX_THREADS = 256;
+    static final int MAX_REWARD_ADDRESSES = Memory.SIZE;
+
+    private final RomCatalog catalog;
+
+    public EnvironmentServer(RomCatalog catalog) {
+        this.catalog = catalog;
+    }
+
+    // Accepts connections on the loopback interface until the thread is interrupted
+    public void serve(int port) throws IOException {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            while (!Thread.currentThread().isInterrupted()) {
+                SocketChannel client = server.accept();
+                Thread thread = new Thread(() -> session(client), "chip8-env");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+    }
+
+    // One connection's requests, until it closes
+    private void session(SocketChannel client) {
+        Environment env = null;
+        ByteBuffer in = ByteBuffer.allocate(256);
+        ByteBuffer out = ByteBuffer.allocate(256);
+        int[] actions = null;
+
+        try (SocketChannel channel = client) {
+            channel.socket().setTcpNoDelay(true);
+            while (true) {
+                int command;
+                try {
+                    command = read(channel, in, 1).get() & 0xFF;
+                } catch (EOFException e) {
+                    break; // Client hung up between requests
+                }
+                out.clear();
+                try {
+                    switch (command) {
+                        case CREATE: {
+                            read(channel, in, 11);
+                            int count = in.getInt();
+                            int threads = in.getInt();
+                            int engine = in.get() & 0xFF;
+                            int nameLength = in.getShort() & 0xFFFF;
+                            in = fit(in, nameLength);
+                            String name = new String(read(channel, in, nameLength).array(), 0, nameLength, StandardCharsets.UTF_8);
+                            // The whole request is read before checking it, so the next one starts where it should
+                            int rewardCount = read(channel, in, 2).getShort() & 0xFFFF;
+                            in = fit(in, rewardCount * 2);
+                            read(channel, in, rewardCount * 2);
+                            if (count < 1 || count > MAX_MACHINES) {
+                                throw new IllegalArgumentException("Need 1 to " + MAX_MACHINES + " machines, got " + Integer.toUnsignedString(count));
+                            }
+                            if (threads < 0 || threads > MAX_THREADS) {
+                                throw new IllegalArgumentException("Need 0 to " + MAX_THREADS + " threads, got " + Integer.toUnsignedString(threads));
+                            }
+                            if (rewardCount > MAX_REWARD_ADDRESSES) {
+                                throw new IllegalArgumentException("At most " + MAX_REWARD_ADDRESSES + " reward addresses, got " + rewardCount);
+                            }
+                            int[] rewardAddresses = new int[rewardCount];
+                            for (int i=0; i<rewardCount; i++) {
+                                rewardAddresses[i] = in.getShort() & 0xFFFF;
+                            }
+
+                            RomImage rom = catalog.byName(name) != null ? catalog.byName(name) : catalog.get(name);
+                            if (rom == null) {
+                                throw new IllegalArgumentException("No ROM called " + name);
+                            }
+                            if (engine >= CPU.Engine.values().length) {
+                                throw new IllegalArgumentException("No engine " + engine);
+                            }
+                            if (env != null) {
+                                env.close();
+                                env = null;
+                            }
+                            env = new Environment(rom, count, rewardAddresses,
+                                    threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+                            env.setEngine(CPU.Engine.values()[engine]);
+                            env.reset(0);
+                            actions = new int[count];
+                            in = fit(in, 2 + count * 2);
+                            out = fit(out, 1 + count * (Environment.FRAME_LONGS * 8 + 4 + 1));
+                            out.put((byte) OK).putInt(count);
+                            break;
+                        }
+                        case RESET:
+                            long seed = read(channel, in, 8).getLong();
+                            created(env).reset(seed);
+                            observe(env, out.put((byte) OK));
+                            break;
+                        case STEP:
+                            if (env == null) {
+                                // The request's length depends on the number of machines
+                                throw new IOException("STEP before CREATE");
+                            }
+                            int frames = read(channel, in, 2).getShort() & 0xFFFF;
+                            read(channel, in, env.size() * 2);
+                            for (int i=0; i<actions.length; i++) {
+                                actions[i] = in.getShort() & 0xFFFF;
+                            }
+                            env.step(actions, frames);
+                            observe(env, out.put((byte) OK));
+                            break;
+                        default:
+                            // Can't tell where the next request starts, so give up on the connection
+                            throw new IOException("Unknown command " + command);
+                    }
+                } catch (RuntimeException e) {
+                    byte[] message = String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8);
+                    out.clear();
+                    out.put((byte) ERROR).putShort((short) Math.min(message.length, out.capacity() - 3))
+                            .put(message, 0, Math.min(message.length, out.capacity() - 3));
+                }
+                out.flip();
+                while (out.hasRemaining()) {
+                    channel.write(out);
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            // Connection dropped (or the server is shutting down), nothing to answer
+        } finally {
+            if (env != null) {
+                env.close();
+            }
+        }
+    }
+
+    private static Environment created(Environment env) {
+        if (env == null) {
+            throw new IllegalStateException("No environment, send CREATE first");
+        }
+        return env;
+    }
+
+    private static void observe(Environment env, ByteBuffer out) {
+        out.asLongBuffer().put(env.getFrames());
+        out.position(out.position() + env.getFrames().length * 8);
+        out.asIntBuffer().put(env.getRewards());
+        out.position(out.position() + env.getRewards().length * 4);
+        for (boolean done : env.getDone()) {
+            out.put((byte) (done ? 1 : 0));
+        }
+    }
+
+    // buffer, or a bigger one if it can't hold length bytes. Buffers only ever grow, so a request that fails after
+    // growing one still leaves it big enough for the Environment we already have
+    private static ByteBuffer fit(ByteBuffer buffer, int length) {
+        return buffer.capacity() >= length ? buffer : ByteBuffer.allocate(length);
+    }
+
+    // Read exactly length bytes into the start of buffer, and return it ready to get them from
+    private static ByteBuffer read(SocketChannel channel, ByteBuffer buffer, int length) throws IOException {
+        if (length > buffer.capacity()) {
+            throw new IOException("Request too long: " + length + " bytes");
+        }
+        buffer.clear().limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException();
+            }
+        }
+        return buffer.flip();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: EnvironmentServer <rom directory> [port]");
+            System.exit(1);
+        }
+        RomCatalog catalog = RomCatalog.scan(new File(args[0]));
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+        System.out.println("Serving " + catalog.names().size() + " ROMs on " + InetAddress.getLoopbackAddress().getHostAddress() + ":" + port);
+        new EnvironmentServer(catalog).serve(port);
+    }
+}
@@ -0,0 +1,87 @@
+package com.mxbi.chip8;
+
+import java.util.Arrays;
+
+// 64x32 monochrome framebuffer packed into one long per row.
+// Bit 63 of a row is the leftmost pixel (x=0), bit 0 the rightmost (x=63), so a sprite byte shifted to the top
+// of a long and rotated right by x lands exactly on screen, wrapping around the edge like the original per-pixel code.
+public class FrameBuffer {
+    public static final int WIDTH = 64;
+    public static final int HEIGHT = 32;
+
+    private final long[] rows = new long[HEIGHT];
+
+    public void clear() {
+        Arrays.fill(rows, 0L);
+    }
+
+    // XOR one 8-pixel sprite row onto the screen, returns true if any pixel was unset
+    public boolean drawRow(int spriteByte, int x, int y) {
+        long bits = Long.rotateRight(((long) (spriteByte & 0xFF)) << 56, x);
+        int row = y & (HEIGHT - 1);
+        boolean collision = (rows[row] & bits) != 0;
+        rows[row] ^= bits;
+        return collision;
+    }
+
+    // Draw a sprite of data.length rows at (x0, y0), returns true if any pixel was unset
+    public boolean draw(short[] data, int x0, int y0) {
+        boolean flipped = false;
+        for (int y=0; y<data.length; y++) {
+            flipped |= drawRow(data[y], x0, y0 + y);
+        }
+        return flipped;
+    }
+
+    // Draw length sprite rows read from memory starting at offset, returns true if any pixel was unset
+    public boolean draw(Memory memory, int offset, int length, int x0, int y0) {
+        boolean flipped = false;
+        int end = Math.min(offset + length, memory.size());
+        for (int i=offset; i<end; i++) {
+            flipped |= drawRow(memory.get(i), x0, y0 + i - offset);
+        }
+        return flipped;
+    }
+
+    public boolean get(int x, int y) {
+        return ((rows[y] >>> (63 - x)) & 1) == 1;
+    }
+
+    public long getRow(int y) {
+        return rows[y];
+    }
+
+    public void setRow(int y, long row) {
+        rows[y] = row;
+    }
+
+    public void copyFrom(FrameBuffer other) {
+        System.arraycopy(other.rows, 0, rows, 0, HEIGHT);
+    }
+
+    public FrameBuffer copy() {
+        FrameBuffer copy = new FrameBuffer();
+        copy.copyFrom(this);
+        return copy;
+    }
+
+    // 64-bit FNV-1a style hash over the packed rows
+    public long hash() {
+        long hash = 0xcbf29ce484222325L;
+        for (long row : rows) {
+            hash ^= row;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof FrameBuffer && Arrays.equals(rows, ((FrameBuffer) o).rows);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(rows);
+    }
+}
@@ -0,0 +1,138 @@
+package com.mxbi.chip8;
+
+import java.io.*;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+// Records every emulated frame to a file, see CaptureConverter for turning it into a GIF.
+// The CPU copies each frame into a preallocated ring and carries on, a background thread does the encoding and
+// writing (see RingWriter). When the writer can't keep up, frames are either dropped (DROP, emulation speed is never
+// affected) or the CPU parks until there's space (BLOCK, nothing is lost, for headless recording).
+//
+// File format, gzipped (big-endian): magic "C8FC", int version, short width, short height, int frames per second,
+// then one record per frame that differs from the previous record:
+//   varint frames since the previous record (the first counts from frame -1), varint mask of rows that changed
+//   (bit y for row y), and for each changed row, top to bottom, the row XOR its previous contents: a byte flagging
+//   which of its 8 bytes are non-zero (leftmost first), then just those bytes
+// Unchanged and dropped frames are just skipped, so the screen holds whatever the last record showed.
+public class FrameCapture extends RingWriter {
+    static final int MAGIC = 0x43384643; // "C8FC"
+    static final int VERSION = 1;
+
+    public enum Overflow { DROP, BLOCK }
+
+    private final Overflow overflow;
+    private final long[] ring; // HEIGHT rows per slot
+    private final long[] frameNumbers;
+
+    private long frames = 0; // Frames offered, including dropped ones
+    private volatile long dropped = 0;
+
+    private final DataOutputStream out;
+    private final long[] previous = new long[FrameBuffer.HEIGHT]; // Screen as of the last record, writer thread only
+    private long lastWritten = -1;
+
+    // Unthrottled runs produce frames faster than the default level compresses them, the fastest level keeps up
+    // at about twice the size
+    private static class FastGZIPOutputStream extends GZIPOutputStream {
+        FastGZIPOutputStream(OutputStream out, int size) throws IOException {
+            super(out, size);
+            def.setLevel(Deflater.BEST_SPEED);
+        }
+    }
+
+    public FrameCapture(File file, Overflow overflow) throws IOException {
+        this(file, overflow, 256);
+    }
+
+    public FrameCapture(File file, Overflow overflow, int capacity) throws IOException {
+        super("chip8-capture", capacity, 2000000);
+        this.overflow = overflow;
+        ring = new long[capacity * FrameBuffer.HEIGHT];
+        frameNumbers = new long[capacity];
+
+        out = new DataOutputStream(new BufferedOutputStream(new FastGZIPOutputStream(new FileOutputStream(file), 1 << 16), 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeShort(FrameBuffer.WIDTH);
+        out.writeShort(FrameBuffer.HEIGHT);
+        out.writeInt(Timer.updateRate);
+        start();
+    }
+
+    // Called by the CPU once per emulated frame
+    void offer(FrameBuffer frame) {
+        long number = frames++;
+        long sequence = overflow == Overflow.DROP ? tryClaim() : claim();
+        if (sequence < 0) {
+            dropped = dropped + 1;
+            return;
+        }
+
+        int slot = slot(sequence);
+        int base = slot * FrameBuffer.HEIGHT;
+        for (int y=0; y<FrameBuffer.HEIGHT; y++) {
+            ring[base + y] = frame.getRow(y);
+        }
+        frameNumbers[slot] = number;
+        publish(sequence);
+    }
+
+    // Frames the writer had no room for, always 0 with BLOCK
+    public long getDropped() {
+        return dropped;
+    }
+
+    @Override
+    void write(int slot) throws IOException {
+        int base = slot * FrameBuffer.HEIGHT;
+        int changed = 0;
+        for (int y=0; y<FrameBuffer.HEIGHT; y++) {
+            if (ring[base + y] != previous[y]) {
+                changed |= 1 << y;
+            }
+        }
+        if (changed == 0) {
+            return;
+        }
+
+        writeVarint(frameNumbers[slot] - lastWritten);
+        writeVarint(changed & 0xFFFFFFFFL);
+        for (int y=0; y<FrameBuffer.HEIGHT; y++) {
+            if ((changed & (1 << y)) != 0) {
+                writeRow(ring[base + y] ^ previous[y]);
+                previous[y] = ring[base + y];
+            }
+        }
+        lastWritten = frameNumbers[slot];
+    }
+
+    // A byte with a bit set for each non-zero byte of the row (most significant first), then those bytes
+    private void writeRow(long delta) throws IOException {
+        int present = 0;
+        for (int i=0; i<8; i++) {
+            if ((delta >>> (56 - i * 8) & 0xFF) != 0) {
+                present |= 0x80 >>> i;
+            }
+        }
+        out.writeByte(present);
+        for (int i=0; i<8; i++) {
+            if ((present & (0x80 >>> i)) != 0) {
+                out.writeByte((int) (delta >>> (56 - i * 8)));
+            }
+        }
+    }
+
+    private void writeVarint(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    @Override
+    void closeOutput() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,107 @@
+package com.mxbi.chip8;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+
+// Renders frames into one preallocated image by writing scaled pixels straight into its raster.
+// It remembers what every screen pixel currently shows, so each render only touches pixels whose colour changed,
+// and reports the rows it touched so only those need repainting. Nothing is allocated unless the scale changes.
+final class FrameRenderer {
+    private static final int BACKGROUND = SwingDisplay.BACKGROUND.getRGB();
+    private static final int FOREGROUND = SwingDisplay.FOREGROUND.getRGB();
+    private static final int PERSISTENCE = SwingDisplay.PERSISTENCE.getRGB();
+
+    private int scale;
+    private BufferedImage image;
+    private int[] raster;
+
+    // What the raster currently shows, as FrameBuffer rows: lit pixels, and faded ones (persistence)
+    private final long[] shownLit = new long[FrameBuffer.HEIGHT];
+    private final long[] shownFaded = new long[FrameBuffer.HEIGHT];
+
+    // Screen rows changed by the last render(), empty if dirtyTop > dirtyBottom
+    private int dirtyTop;
+    private int dirtyBottom;
+    private boolean repaintAll; // The whole image is new and hasn't been shown yet
+
+    FrameRenderer(int scale) {
+        setScale(scale);
+    }
+
+    // Reallocates the image if the scale changed, everything gets redrawn on the next render()
+    void setScale(int scale) {
+        if (scale < 1) {
+            throw new IllegalArgumentException("Scale must be at least 1, got " + scale);
+        }
+        if (scale == this.scale) {
+            return;
+        }
+        this.scale = scale;
+        image = new BufferedImage(FrameBuffer.WIDTH * scale, FrameBuffer.HEIGHT * scale, BufferedImage.TYPE_INT_RGB);
+        raster = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+
+        Arrays.fill(raster, BACKGROUND);
+        Arrays.fill(shownLit, 0L);
+        Arrays.fill(shownFaded, 0L);
+        repaintAll = true;
+    }
+
+    int getScale() {
+        return scale;
+    }
+
+    BufferedImage getImage() {
+        return image;
+    }
+
+    // Draw frame, with pixels that are only lit in lastFrame shown as 1-frame persistence.
+    // Returns false if nothing changed on screen
+    boolean render(FrameBuffer frame, FrameBuffer lastFrame) {
+        int top = repaintAll ? 0 : FrameBuffer.HEIGHT;
+        int bottom = repaintAll ? FrameBuffer.HEIGHT - 1 : -1;
+        repaintAll = false;
+
+        for (int y=0; y<FrameBuffer.HEIGHT; y++) {
+            long lit = frame.getRow(y);
+            long faded = lastFrame.getRow(y) & ~lit;
+            long changed = (lit ^ shownLit[y]) | (faded ^ shownFaded[y]);
+            if (changed == 0) {
+                continue;
+            }
+
+            while (changed != 0) {
+                int x = Long.numberOfLeadingZeros(changed);
+                long bit = 1L << (63 - x);
+                changed &= ~bit;
+                fillPixel(x, y, (lit & bit) != 0 ? FOREGROUND : (faded & bit) != 0 ? PERSISTENCE : BACKGROUND);
+            }
+            shownLit[y] = lit;
+            shownFaded[y] = faded;
+            top = Math.min(top, y);
+            bottom = Math.max(bottom, y);
+        }
+
+        dirtyTop = top;
+        dirtyBottom = bottom;
+        return top <= bottom;
+    }
+
+    // First and last screen rows touched by the last render()
+    int getDirtyTop() {
+        return dirtyTop;
+    }
+
+    int getDirtyBottom() {
+        return dirtyBottom;
+    }
+
+    private void fillPixel(int x, int y, int rgb) {
+        int stride = FrameBuffer.WIDTH * scale;
+        int offset = y * scale * stride + x * scale;
+        for (int row=0; row<scale; row++) {
+            Arrays.fill(raster, offset, offset + scale, rgb);
+            offset += stride;
+        }
+    }
+}
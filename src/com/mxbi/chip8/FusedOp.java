@@ -0,0 +1,65 @@
+package com.mxbi.chip8;
+
+// A superinstruction: a common sequence of 2-3 instructions that the interpreter runs as a single step.
+// Found by match() and executed by CPU.executeFused()
+final class FusedOp {
+    static final int LOAD_SET_TIMER = 0; // 6xkk, then Fx15 or Fx18 on the same register
+    static final int LOAD_I_DRAW = 1;    // Annn, then Dxyn
+    static final int ADD_SKIP = 2;       // 7xkk, then 3xkk or 4xkk on the same register (loop counters)
+    static final int DELAY_WAIT = 3;     // Fx07, 3xkk on the same register, 1nnn back to the Fx07 (waiting on the delay timer)
+
+    // Cached at addresses where nothing can be fused, so we only look once
+    static final FusedOp NONE = new FusedOp(-1, 0, null, null, null);
+
+    // Longest sequence we fuse, in bytes, for invalidation
+    static final int MAX_BYTES = 6;
+
+    final int kind;
+    final int length; // Instructions executed when the sequence runs straight through
+    final DecodedOp first;
+    final DecodedOp second;
+    final DecodedOp third;
+
+    private FusedOp(int kind, int length, DecodedOp first, DecodedOp second, DecodedOp third) {
+        this.kind = kind;
+        this.length = length;
+        this.first = first;
+        this.second = second;
+        this.third = third;
+    }
+
+    // Look for a fusable sequence starting with first at address. second and third are the instructions after it,
+    // or null past the end of memory
+    static FusedOp match(int address, DecodedOp first, DecodedOp second, DecodedOp third) {
+        if (second == null) {
+            return NONE;
+        }
+        int a = first.instr;
+        int b = second.instr;
+
+        switch (a & 0xF000) {
+            case 0x6000:
+                if ((b & 0xF000) == 0xF000 && second.x == first.x && (second.kk == 0x15 || second.kk == 0x18)) {
+                    return new FusedOp(LOAD_SET_TIMER, 2, first, second, null);
+                }
+                break;
+            case 0xA000:
+                if ((b & 0xF000) == 0xD000) {
+                    return new FusedOp(LOAD_I_DRAW, 2, first, second, null);
+                }
+                break;
+            case 0x7000:
+                if (((b & 0xF000) == 0x3000 || (b & 0xF000) == 0x4000) && second.x == first.x) {
+                    return new FusedOp(ADD_SKIP, 2, first, second, null);
+                }
+                break;
+            case 0xF000:
+                if (first.kk == 0x07 && (b & 0xF000) == 0x3000 && second.x == first.x
+                        && third != null && (third.instr & 0xF000) == 0x1000 && third.nnn == address) {
+                    return new FusedOp(DELAY_WAIT, 3, first, second, third);
+                }
+                break;
+        }
+        return NONE;
+    }
+}
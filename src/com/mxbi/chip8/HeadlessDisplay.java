@@ -0,0 +1,43 @@
+package com.mxbi.chip8;
+
+// Display and keyboard that never render or block, for running ROMs without a window (eg. batch runs)
+public class HeadlessDisplay implements DisplayInterface, KeyboardInterface {
+    private final FrameBuffer disp = new FrameBuffer();
+
+    public void clear() {
+        disp.clear();
+    }
+
+    public boolean draw(short[] data, int x0, int y0) {
+        return disp.draw(data, x0, y0);
+    }
+
+    @Override
+    public boolean draw(Memory memory, int offset, int length, int x0, int y0) {
+        return disp.draw(memory, offset, length, x0, y0);
+    }
+
+    public long frameHash() {
+        return disp.hash();
+    }
+
+    @Override
+    public FrameBuffer getFrameBuffer() {
+        return disp;
+    }
+
+    @Override
+    public void check() {
+        // Nothing to render
+    }
+
+    @Override
+    public boolean isPressed(int key) {
+        return false;
+    }
+
+    @Override
+    public int pollAnyKey() {
+        return 0; // Key 0 is always there when asked for, so ROMs waiting on a key never halt
+    }
+}
@@ -0,0 +1,71 @@
+package com.mxbi.chip8;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Log-linear histogram of non-negative longs (eg. nanoseconds) for percentiles. Buckets are fixed up front so
+// recording never allocates: each power of two is split into 32 buckets, so percentiles are within about 3%.
+// Only one thread may record, any thread can read.
+final class Histogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private volatile long count = 0;
+    private volatile long max = 0;
+
+    void record(long value) {
+        value = Math.max(value, 0);
+        int i = bucket(value);
+        // Single writer, so there's no need for an atomic increment
+        counts.lazySet(i, counts.get(i) + 1);
+        count = count + 1;
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    long getMax() {
+        return max;
+    }
+
+    // Value below which a fraction p (0 to 1) of recorded values fall, 0 if nothing was recorded
+    long percentile(double p) {
+        long total = count;
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(p * total));
+        long seen = 0;
+        for (int i=0; i<BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                long low = lowerBound(i);
+                long high = i + 1 < BUCKETS ? lowerBound(i + 1) - 1 : Long.MAX_VALUE;
+                return Math.min(low + (high - low) / 2, max);
+            }
+        }
+        return max; // Only if records raced with us
+    }
+
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BITS);
+    }
+}
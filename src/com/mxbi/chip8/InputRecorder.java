@@ -0,0 +1,90 @@
+package com.mxbi.chip8;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+// Wraps a live keyboard and logs what the program reads from it into an InputRecording, saved to file on close().
+// Every Ex9E, ExA1 and Fx0A is answered from the keys held at that moment, and if they differ from the last read the
+// change is logged at the reading instruction's cycle. Changes the program never looks at can't affect it, so aren't
+// logged. Rewinding takes the CPU back to an earlier cycle, and whatever was logged after it is dropped again the
+// next time the program reads the keys, so the recording always follows the run as it ended up. InputReplay plays
+// the file back
+public class InputRecorder implements KeyboardInterface, Closeable {
+    private final KeyboardInterface keyboard;
+    private final File file;
+    private final InputRecording recording = new InputRecording();
+    private CPU cpu;
+    private int lastKeys = 0;
+    private boolean closed = false;
+
+    public InputRecorder(KeyboardInterface keyboard, File file) {
+        this.keyboard = keyboard;
+        this.file = file;
+    }
+
+    // Must be called before the CPU runs, the seed and ROM are taken from it here
+    public void attach(CPU cpu, byte[] rom) {
+        this.cpu = cpu;
+        recording.seed = cpu.getSeed();
+        recording.romHash = AotCompiler.hash(rom);
+    }
+
+    public InputRecording getRecording() {
+        return recording;
+    }
+
+    // Locked because close() can come from another thread (eg. a shutdown hook) while the CPU is still running
+    private synchronized int read() {
+        int keys = keyboard.getPressedKeys();
+        if (closed) {
+            return keys;
+        }
+        long cycle = cpu.instructionCycle();
+        int size = recording.size();
+        if (size > 0 && recording.cycleAt(size - 1) > cycle) {
+            // Rewound, the changes after this cycle never happened in the run as it is now
+            recording.truncate(cycle);
+            size = recording.size();
+            lastKeys = size > 0 ? recording.keysAt(size - 1) : 0;
+        }
+        if (keys != lastKeys) {
+            recording.add(cycle, keys);
+            lastKeys = keys;
+        }
+        return keys;
+    }
+
+    @Override
+    public boolean isPressed(int key) {
+        return key < 16 && (read() & (1 << key)) != 0;
+    }
+
+    @Override
+    public int pollAnyKey() {
+        int keys = read();
+        return keys == 0 ? -1 : Integer.numberOfTrailingZeros(keys);
+    }
+
+    @Override
+    public int getPressedKeys() {
+        return keyboard.getPressedKeys();
+    }
+
+    @Override
+    public void setKeyListener(Runnable listener) {
+        keyboard.setKeyListener(listener);
+    }
+
+    // Stops recording and saves everything so far, the recording ends at the CPU's current cycle
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        long last = recording.size() > 0 ? recording.cycleAt(recording.size() - 1) + 1 : 0;
+        recording.endCycle = Math.max(cpu.getCycles(), last);
+        recording.save(file);
+    }
+}
@@ -0,0 +1,98 @@
+package com.mxbi.chip8;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+// A run's worth of keypad input: the random seed it started with, and every change in the keys the program saw,
+// against the emulated cycle it saw them on. Made by InputRecorder, played back by InputReplay.
+//
+// File format (text): a "CHIP-8 input recording 1" line, then "rom <sha-256>", "seed <seed>" and "end <cycle>" lines,
+// then one "<cycle> <keys>" line per change, keys being the held keys as a hex bitmask (bit n is key n)
+public class InputRecording {
+    private static final String HEADER = "CHIP-8 input recording 1";
+
+    public String romHash = "";
+    public long seed;
+    public long endCycle; // Cycles the recorded run lasted
+
+    private long[] cycles = new long[64];
+    private int[] keys = new int[64];
+    private int size = 0;
+
+    // Changes must be added in cycle order
+    void add(long cycle, int keys) {
+        if (size > 0 && cycle < cycles[size - 1]) {
+            throw new IllegalArgumentException("Input at cycle " + cycle + " is before the last one, " + cycles[size - 1]);
+        }
+        if (size == cycles.length) {
+            cycles = Arrays.copyOf(cycles, size * 2);
+            this.keys = Arrays.copyOf(this.keys, size * 2);
+        }
+        cycles[size] = cycle;
+        this.keys[size] = keys;
+        size++;
+    }
+
+    // Forget every change after cycle, eg. after the machine was rewound to before them
+    void truncate(long cycle) {
+        while (size > 0 && cycles[size - 1] > cycle) {
+            size--;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long cycleAt(int index) {
+        return cycles[index];
+    }
+
+    public int keysAt(int index) {
+        return keys[index];
+    }
+
+    public void save(File file) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8))) {
+            out.println(HEADER);
+            out.println("rom " + romHash);
+            out.println("seed " + seed);
+            out.println("end " + endCycle);
+            for (int i=0; i<size; i++) {
+                out.println(cycles[i] + " " + Integer.toHexString(keys[i]));
+            }
+        }
+    }
+
+    public static InputRecording load(File file) throws IOException {
+        InputRecording recording = new InputRecording();
+        try (BufferedReader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            if (!HEADER.equals(in.readLine())) {
+                throw new IOException(file + " isn't an input recording");
+            }
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.trim().split(" ");
+                if (parts.length != 2) {
+                    continue;
+                }
+                try {
+                    switch (parts[0]) {
+                        case "rom": recording.romHash = parts[1]; break;
+                        case "seed": recording.seed = Long.parseLong(parts[1]); break;
+                        case "end": recording.endCycle = Long.parseLong(parts[1]); break;
+                        default: recording.add(Long.parseLong(parts[0]), Integer.parseInt(parts[1], 16)); break;
+                    }
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Bad line in " + file + ": " + line, e);
+                }
+            }
+        }
+        return recording;
+    }
+}
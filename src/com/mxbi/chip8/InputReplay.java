@@ -0,0 +1,86 @@
+package com.mxbi.chip8;
+
+import java.io.File;
+import java.io.IOException;
+
+// Plays an InputRecording back as the keyboard: the program reads exactly the keys it read when it was recorded,
+// at the same cycles, and with the recording's seed Cxkk draws the same numbers. So the replay reproduces the
+// recorded run bit for bit, at any speed and on any engine. Halts on Fx0A skip straight to the next key change.
+// Usage: InputReplay <rom> <recording> [--engine=INTERPRETER|PREDECODED|JIT]
+public class InputReplay implements KeyboardInterface {
+    private final InputRecording recording;
+    private CPU cpu;
+    private int next = 0; // Index of the first change after the cycle last asked about
+
+    public InputReplay(InputRecording recording) {
+        this.recording = recording;
+    }
+
+    // Must be called before the CPU runs, restarts its random numbers from the recorded seed
+    public void attach(CPU cpu) {
+        this.cpu = cpu;
+        cpu.setSeed(recording.seed);
+    }
+
+    // Keys held at cycle. Usually cycles only go forwards, but they can go back after a rewind
+    int keysAt(long cycle) {
+        while (next > 0 && recording.cycleAt(next - 1) > cycle) {
+            next--;
+        }
+        while (next < recording.size() && recording.cycleAt(next) <= cycle) {
+            next++;
+        }
+        return next == 0 ? 0 : recording.keysAt(next - 1);
+    }
+
+    @Override
+    public boolean isPressed(int key) {
+        return key < 16 && (keysAt(cpu.instructionCycle()) & (1 << key)) != 0;
+    }
+
+    @Override
+    public int pollAnyKey() {
+        int keys = keysAt(cpu.instructionCycle());
+        return keys == 0 ? -1 : Integer.numberOfTrailingZeros(keys);
+    }
+
+    @Override
+    public int getPressedKeys() {
+        return keysAt(cpu.instructionCycle());
+    }
+
+    @Override
+    public long nextChange(long cycle) {
+        keysAt(cycle);
+        return next < recording.size() ? recording.cycleAt(next) : Long.MAX_VALUE;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 2) {
+            System.err.println("Usage: InputReplay <rom> <recording> [--engine=INTERPRETER|PREDECODED|JIT]");
+            System.exit(1);
+        }
+        byte[] rom = ROMLoader.readRomFromFile(args[0]);
+        InputRecording recording = InputRecording.load(new File(args[1]));
+        if (!recording.romHash.equals(AotCompiler.hash(rom))) {
+            System.err.println("Warning: " + args[1] + " was recorded with a different ROM");
+        }
+        CPU.Engine engine = CPU.Engine.INTERPRETER;
+        for (int i=2; i<args.length; i++) {
+            if (args[i].startsWith("--engine=")) {
+                engine = CPU.Engine.valueOf(args[i].substring("--engine=".length()));
+            }
+        }
+
+        HeadlessDisplay display = new HeadlessDisplay();
+        InputReplay replay = new InputReplay(recording);
+        CPU cpu = new CPU(rom, display, replay, CPU.UNLIMITED);
+        cpu.setEngine(engine);
+        replay.attach(cpu);
+
+        long t0 = System.nanoTime();
+        cpu.run(recording.endCycle);
+        long wall = System.nanoTime() - t0;
+        System.out.printf("hash=%016X cycles=%d wall=%.2fms%n", display.frameHash(), cpu.getCycles(), wall / 1e6);
+    }
+}
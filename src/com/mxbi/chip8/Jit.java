@@ -0,0 +1,124 @@
+package com.mxbi.chip8;
+
+import java.util.Arrays;
+
+// Per-CPU side of the dynamic recompiler: finds basic blocks, counts how often they're entered and hands hot ones
+// to BlockCompiler. Compiled code is only ever used through CPU.executeCompiled(), which falls back to the
+// interpreter whenever there's no compiled block ready (or it can't be used right now).
+class Jit {
+    // Entries into a block before it gets compiled
+    static final int HOT_THRESHOLD = 32;
+    static final int MAX_BLOCK_INSTRUCTIONS = 64;
+    // Most instructions to run through chained compiled blocks before going back to CPU.run(), which is where the
+    // display gets checked
+    static final int MAX_CHAIN_INSTRUCTIONS = 256;
+
+    // How an instruction relates to basic blocks
+    static final int BODY = 0;       // Compiled inline
+    static final int TERMINATOR = 1; // Control flow, drawing, Fx0A, setting timers or ram writes: compiled as the last instruction of a block
+    static final int EXCLUDED = 2;   // Always interpreted
+    static final int SKIP = 3;       // Conditional skips: compiled inline, leaving the block when they skip
+
+    private final Memory ram;
+    private final JitBlock[] blocks = new JitBlock[Memory.SIZE];
+
+    Jit(Memory ram) {
+        this.ram = ram;
+    }
+
+    static int classify(int instr) {
+        switch ((instr & 0xF000) >>> 12) {
+            case 0x0: switch (instr) {
+                case 0x00E0: return BODY;
+                case 0x00EE: return TERMINATOR;
+                default: return EXCLUDED; // 0nnn
+            }
+            case 0x1: case 0x2: case 0xB: case 0xD: return TERMINATOR;
+            case 0x3: case 0x4: return SKIP;
+            case 0x5: case 0x9: return (instr & 0x000F) == 0 ? SKIP : EXCLUDED;
+            case 0x6: case 0x7: case 0xA: case 0xC: return BODY;
+            case 0x8: switch (instr & 0x000F) {
+                case 0x0: case 0x1: case 0x2: case 0x3: case 0x4: case 0x5: case 0x6: case 0x7: case 0xE: return BODY;
+                default: return EXCLUDED;
+            }
+            case 0xE: switch (instr & 0x00FF) {
+                case 0x9E: case 0xA1: return SKIP;
+                default: return EXCLUDED;
+            }
+            case 0xF: switch (instr & 0x00FF) {
+                case 0x07: case 0x1E: case 0x29: case 0x65: return BODY;
+                case 0x0A: case 0x15: case 0x18: case 0x33: case 0x55: return TERMINATOR;
+                default: return EXCLUDED;
+            }
+            default: return EXCLUDED;
+        }
+    }
+
+    // Block starting at pc, discovering it if we haven't seen it before
+    JitBlock lookup(int pc) {
+        if (pc >= blocks.length) {
+            return discover(pc); // Nothing there, so the interpreter gets to throw the same exception as always
+        }
+        JitBlock block = blocks[pc];
+        if (block == null) {
+            block = discover(pc);
+            blocks[pc] = block;
+        }
+        return block;
+    }
+
+    // Count an entry into the block, and compile it once it gets hot
+    void hit(JitBlock block) {
+        block.hits++;
+        if (block.hits == HOT_THRESHOLD && block.compilable) {
+            BlockCompiler.submit(block);
+        }
+    }
+
+    // Follow instructions from pc up to (and including) the first terminator, or up to the first excluded one. Skips
+    // don't end a block, if one skips the compiled code leaves the block there
+    // Blocks that were compiled before (by another CPU, or ahead of time by AotCompiler) are ready straight away
+    JitBlock discover(int pc) {
+        int[] instrs = new int[MAX_BLOCK_INSTRUCTIONS];
+        int length = 0;
+        int address = pc;
+        while (length < MAX_BLOCK_INSTRUCTIONS && address + 1 < ram.size()) {
+            int instr = (ram.get(address) << 8) | ram.get(address + 1);
+            int kind = classify(instr);
+
+            // Jumping or calling to yourself is how programs end, leave that to the interpreter to detect
+            int op = instr & 0xF000;
+            boolean selfJump = (op == 0x1000 || op == 0x2000) && CPU.getn(instr) == address;
+            if (kind == EXCLUDED || selfJump) {
+                break;
+            }
+
+            instrs[length++] = instr;
+            address += 2;
+            if (kind == TERMINATOR) {
+                break;
+            }
+        }
+        JitBlock block = new JitBlock(pc, Arrays.copyOf(instrs, length));
+        block.compiled = BlockCompiler.cached(block.key);
+        // Fx07, then 3xkk on the same register, then a jump back: see FusedOp.DELAY_WAIT
+        block.delayWait = length == 3 && (instrs[0] & 0xF0FF) == 0xF007
+                && (instrs[1] & 0xFF00) == (0x3000 | (instrs[0] & 0x0F00)) && instrs[2] == (0x1000 | pc);
+        return block;
+    }
+
+    // Drop every block overlapping ram[address, address+length), along with its shared compiled code
+    void invalidate(int address, int length) {
+        int start = Math.max(address - 2 * MAX_BLOCK_INSTRUCTIONS, 0);
+        int end = Math.min(address + length, blocks.length);
+        for (int i=start; i<end; i++) {
+            JitBlock block = blocks[i];
+            if (block != null && block.end > address) {
+                if (block.compiled != null) {
+                    BlockCompiler.evict(block.key, block.compiled);
+                }
+                blocks[i] = null;
+            }
+        }
+    }
+}
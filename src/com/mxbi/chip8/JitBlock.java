@@ -0,0 +1,57 @@
+package com.mxbi.chip8;
+
+// A straight-line run of instructions starting at a block leader, as found by Jit.discover(). Skips inside it leave
+// the block early when they skip
+final class JitBlock {
+    final int start;       // Address of the first instruction
+    final int[] instrs;    // Instruction words, in order
+    final int end;         // First address after the block
+    final int lastAddress; // Address of the final instruction, if PC is still here after running all of it we're stuck
+    final boolean loops;     // Ends by jumping back to start, compiled code goes round it without leaving
+    final boolean compilable;
+    final boolean setsTimer; // Ends on Fx15 or Fx18, which can move the next timer tick
+
+    // Identifies the code of the block, blocks with the same key can share one compiled class
+    final String key;
+
+    boolean delayWait; // A delay wait loop, which CPU.executeCompiled() spins like FusedOp.DELAY_WAIT
+    int hits = 0;
+    volatile CompiledBlock compiled;
+
+    JitBlock(int start, int[] instrs) {
+        this.start = start;
+        this.instrs = instrs;
+        this.end = start + 2 * instrs.length;
+        this.lastAddress = end - 2;
+        this.compilable = instrs.length > 0;
+        int last = instrs.length > 0 ? instrs[instrs.length - 1] & 0xF0FF : 0;
+        this.setsTimer = last == 0xF015 || last == 0xF018;
+        this.loops = loopsBack(start, instrs);
+
+        // Every CPU discovers its blocks afresh, so this avoids String.format()
+        StringBuilder sb = new StringBuilder(4 + 5 * instrs.length);
+        hex(sb, start, 3);
+        for (int instr : instrs) {
+            hex(sb, instr, 4);
+        }
+        this.key = sb.toString();
+    }
+
+    // The block is a loop: at least one instruction, then a jump back to start
+    static boolean loopsBack(int start, int[] instrs) {
+        return instrs.length >= 2 && instrs[instrs.length - 1] == (0x1000 | start);
+    }
+
+    private static void hex(StringBuilder sb, int value, int digits) {
+        if (sb.length() > 0) {
+            sb.append('_');
+        }
+        for (int shift=4 * (digits - 1); shift>=0; shift-=4) {
+            sb.append("0123456789ABCDEF".charAt((value >>> shift) & 0xF));
+        }
+    }
+
+    int length() {
+        return instrs.length;
+    }
+}
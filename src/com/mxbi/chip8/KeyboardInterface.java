@@ -1,6 +1,34 @@
 package com.mxbi.chip8;
 
 public interface KeyboardInterface {
+    // nextChange() result for live keyboards, which can't know when the keys will change
+    long LIVE = -1;
+
     boolean isPressed(int key);
-    int waitForAnyKey();
+
+    // For Fx0A: a key that's currently pressed, or -1 if there isn't one. This mustn't block, the CPU halts
+    // until a key is pressed and keeps emulated time (timers, frames) running in the meantime
+    int pollAnyKey();
+
+    // Called with a listener to run (on any thread) whenever a key is pressed, so a halted CPU can wake up.
+    // Keyboards that never block don't need to bother
+    default void setKeyListener(Runnable listener) {};
+
+    // Bit n is set if key n is held down. Unlike isPressed() and pollAnyKey() this is only a peek, not a read by the
+    // program, so InputRecorder doesn't log it
+    default int getPressedKeys() {
+        int keys = 0;
+        for (int key=0; key<16; key++) {
+            if (isPressed(key)) {
+                keys |= 1 << key;
+            }
+        }
+        return keys;
+    }
+
+    // For replayed input: the first cycle after cycle at which the keys change (Long.MAX_VALUE if they never do),
+    // so a CPU halted on Fx0A can skip straight there. LIVE otherwise
+    default long nextChange(long cycle) {
+        return LIVE;
+    }
 }
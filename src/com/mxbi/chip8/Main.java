@@ -1,13 +1,59 @@
 package com.mxbi.chip8;
 
 import javax.swing.*;
+import javax.management.JMException;
 import java.awt.*;
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 
 public class Main {
 
-    public static void main(String[] args) throws IOException, InterruptedException, InvocationTargetException {
+    public static void main(String[] args) throws IOException, InterruptedException, InvocationTargetException, JMException {
+        // --turbo runs unthrottled, --speed=N runs at N times the normal clock speed
+        // --engine=INTERPRETER|PREDECODED|JIT picks how instructions are executed, JIT is experimental
+        // --aot-cache=<directory> loads (or builds) ahead-of-time compiled code for the ROM, only with --engine=JIT
+        // --trace=<file> records every instruction to file, read it back with TraceDecoder
+        // --metrics=<seconds> prints runtime metrics every few seconds, they're always available over JMX
+        // --capture=<file> records every frame to file, turn it into a GIF with CaptureConverter
+        // --record=<file> records the keypad input (and random seed) to file, play it back with InputReplay
+        // --rewind=<seconds> keeps that much history, hold Backspace to go back through it
+        double speed = 1.0;
+        CPU.Engine engine = CPU.Engine.INTERPRETER;
+        File aotCache = null;
+        File traceFile = null;
+        long metricsPeriod = 0;
+        File captureFile = null;
+        File recordFile = null;
+        int rewindSeconds = 0;
+        for (String arg : args) {
+            if (arg.equals("--turbo")) {
+                speed = CPU.UNLIMITED;
+            } else if (arg.startsWith("--speed=")) {
+                speed = Double.parseDouble(arg.substring("--speed=".length()));
+            } else if (arg.startsWith("--engine=")) {
+                engine = CPU.Engine.valueOf(arg.substring("--engine=".length()));
+            } else if (arg.startsWith("--aot-cache=")) {
+                aotCache = new File(arg.substring("--aot-cache=".length()));
+            } else if (arg.startsWith("--trace=")) {
+                traceFile = new File(arg.substring("--trace=".length()));
+            } else if (arg.startsWith("--metrics=")) {
+                metricsPeriod = (long) (Double.parseDouble(arg.substring("--metrics=".length())) * 1000);
+            } else if (arg.startsWith("--capture=")) {
+                captureFile = new File(arg.substring("--capture=".length()));
+            } else if (arg.startsWith("--record=")) {
+                recordFile = new File(arg.substring("--record=".length()));
+            } else if (arg.startsWith("--rewind=")) {
+                rewindSeconds = Integer.parseInt(arg.substring("--rewind=".length()));
+            }
+        }
+        // Only the JIT engine runs compiled code, same as BatchRunner. It has to be asked for explicitly
+        if (aotCache != null && engine != CPU.Engine.JIT) {
+            System.err.println("--aot-cache only applies to --engine=JIT, ignoring it");
+            aotCache = null;
+        }
+
     	JFrame frame = new JFrame("CHIPSTER: Select a CHIP-8 ROM");
 //	    JFileChooser fc = new JFileChooser("./roms");
 
@@ -20,14 +66,59 @@ public class Main {
 //	    int returnVal = fc.showDialog(frame, "Load ROM");
 //	    frame.dispose();
 //	    if (returnVal == JFileChooser.APPROVE_OPTION) {
-//		    short[] rom = ROMLoader.loadRomFromFile(fc.getSelectedFile().getAbsolutePath());
+//		    byte[] rom = ROMLoader.readRomFromFile(fc.getSelectedFile().getAbsolutePath());
 		if (filename != null) {
-	        short[] rom = ROMLoader.loadRomFromFile("roms/" + filename);
+	        byte[] rom = ROMLoader.readRomFromFile("roms/" + filename);
+	        if (aotCache != null) {
+	        	AotCompiler.loadOrCompile(aotCache, rom);
+	        }
 
 		    SwingDisplay display = new SwingDisplay();
 
-		    CPU cpu = new CPU(rom, display, display);
+		    InputRecorder recorder = recordFile == null ? null : new InputRecorder(display, recordFile);
+
+		    CPU cpu = new CPU(rom, display, recorder == null ? display : recorder, speed);
+		    cpu.setEngine(engine);
+		    cpu.setAudioSink(ToneGenerator.open());
+
+		    Metrics metrics = new Metrics();
+		    metrics.register(filename);
+		    cpu.setMetrics(metrics);
+		    if (metricsPeriod > 0) {
+		    	metrics.startDump(System.out, metricsPeriod);
+		    }
+		    // The window closing exits the JVM, so traces, captures and recordings get written out on the way down
+		    if (traceFile != null) {
+		    	Tracer tracer = new Tracer(traceFile);
+		    	cpu.setTracer(tracer);
+		    	closeOnExit(tracer);
+		    }
+		    if (captureFile != null) {
+		    	// Dropping frames rather than waiting for the disk keeps the game running at full speed
+		    	FrameCapture capture = new FrameCapture(captureFile, FrameCapture.Overflow.DROP);
+		    	cpu.setCapture(capture);
+		    	closeOnExit(capture);
+		    }
+		    if (rewindSeconds > 0) {
+		    	Rewind rewind = new Rewind(rewindSeconds);
+		    	cpu.setRewind(rewind);
+		    	display.setRewind(rewind);
+		    }
+		    if (recorder != null) {
+		    	recorder.attach(cpu, rom);
+		    	closeOnExit(recorder);
+		    }
 		    cpu.run();
 	    }
     }
+
+    private static void closeOnExit(Closeable closeable) {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }));
+    }
 }
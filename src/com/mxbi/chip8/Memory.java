@@ -0,0 +1,39 @@
+package com.mxbi.chip8;
+
+// Byte-addressed emulator memory with unsigned accessors.
+// Values are stored as real bytes, get() always returns 0x00-0xFF and set() keeps only the low 8 bits,
+// so callers never have to mask themselves.
+public interface Memory {
+    int SIZE = 4096;
+
+    int size();
+
+    // Unsigned byte at address
+    int get(int address);
+
+    // Store the low 8 bits of value at address
+    void set(int address, int value);
+
+    // Bulk copies, used for loading ROMs and taking snapshots
+    default void read(int address, byte[] dest, int offset, int length) {
+        for (int i=0; i<length; i++) {
+            dest[offset + i] = (byte) get(address + i);
+        }
+    }
+
+    default void write(int address, byte[] src, int offset, int length) {
+        for (int i=0; i<length; i++) {
+            set(address + i, src[offset + i]);
+        }
+    }
+
+    // Regular on-heap memory backed by a byte[]
+    static Memory heap() {
+        return new ArrayMemory(SIZE);
+    }
+
+    // Off-heap memory backed by a direct ByteBuffer, for running lots of machines without growing the Java heap
+    static Memory direct() {
+        return new DirectMemory(SIZE);
+    }
+}
@@ -0,0 +1,307 @@
+package com.mxbi.chip8;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Runtime metrics for one CPU, enabled with CPU.setMetrics(). Counted on the CPU thread into primitive counters and
+// histograms (nothing is allocated per instruction or frame), and read from any thread: over JMX once register()ed,
+// or as text through dump() and startDump().
+public class Metrics implements MetricsMXBean {
+    // Instruction classes counted separately, in Cowgod's notation
+    static final String[] OPCODES = {
+            "00E0", "00EE", "0nnn", "1nnn", "2nnn", "3xkk", "4xkk", "5xy0", "6xkk", "7xkk",
+            "8xy0", "8xy1", "8xy2", "8xy3", "8xy4", "8xy5", "8xy6", "8xy7", "8xyE", "9xy0",
+            "Annn", "Bnnn", "Cxkk", "Dxyn", "Ex9E", "ExA1", "Fx07", "Fx0A", "Fx15", "Fx18",
+            "Fx1E", "Fx29", "Fx33", "Fx55", "Fx65", "invalid"
+    };
+    private static final int DRAW = 23;
+    private static final int INVALID = OPCODES.length - 1;
+
+    // Class of every instruction word, so counting is a single lookup
+    private static final byte[] OPCODE_CLASS = new byte[0x10000];
+    static {
+        for (int instr=0; instr<OPCODE_CLASS.length; instr++) {
+            OPCODE_CLASS[instr] = (byte) opcodeClass(instr);
+        }
+    }
+
+    private final AtomicLongArray opcodeCounts = new AtomicLongArray(OPCODES.length);
+    private volatile long collisions = 0;
+    private volatile long timerUnderruns = 0;
+
+    private final Histogram frameTimes = new Histogram(); // Wall clock time between emulated frames
+    private final Histogram clockJitter = new Histogram(); // How late each paced cycle started, when throttled
+
+    // Rates over the last second's worth of frames, worked out on the CPU thread once per frame
+    private final SlidingLongBuffer frameWallTimes = new SlidingLongBuffer(Timer.updateRate + 1);
+    private final SlidingLongBuffer frameCycles = new SlidingLongBuffer(Timer.updateRate + 1);
+    private final SlidingLongBuffer frameDraws = new SlidingLongBuffer(Timer.updateRate + 1);
+    private volatile double instructionsPerSecond = 0;
+    private volatile double framesPerSecond = 0;
+    private volatile double drawsPerSecond = 0;
+
+    private Thread dumper;
+
+    static int opcodeClass(int instr) {
+        switch ((instr & 0xF000) >>> 12) {
+            case 0x0: return instr == 0x00E0 ? 0 : instr == 0x00EE ? 1 : 2;
+            case 0x1: return 3;
+            case 0x2: return 4;
+            case 0x3: return 5;
+            case 0x4: return 6;
+            case 0x5: return (instr & 0x000F) == 0 ? 7 : INVALID;
+            case 0x6: return 8;
+            case 0x7: return 9;
+            case 0x8: switch (instr & 0x000F) {
+                case 0xE: return 18;
+                default: return (instr & 0x000F) <= 0x7 ? 10 + (instr & 0x000F) : INVALID;
+            }
+            case 0x9: return (instr & 0x000F) == 0 ? 19 : INVALID;
+            case 0xA: return 20;
+            case 0xB: return 21;
+            case 0xC: return 22;
+            case 0xD: return DRAW;
+            case 0xE: switch (instr & 0x00FF) {
+                case 0x9E: return 24;
+                case 0xA1: return 25;
+                default: return INVALID;
+            }
+            case 0xF: switch (instr & 0x00FF) {
+                case 0x07: return 26;
+                case 0x0A: return 27;
+                case 0x15: return 28;
+                case 0x18: return 29;
+                case 0x1E: return 30;
+                case 0x29: return 31;
+                case 0x33: return 32;
+                case 0x55: return 33;
+                case 0x65: return 34;
+                default: return INVALID;
+            }
+            default: return INVALID;
+        }
+    }
+
+    // COUNTING, on the CPU thread only
+
+    // An instruction just ran. vf is V[F] afterwards, which after Dxyn says whether it collided
+    void count(int instr, boolean vf) {
+        int c = OPCODE_CLASS[instr & 0xFFFF];
+        opcodeCounts.lazySet(c, opcodeCounts.get(c) + 1);
+        if (c == DRAW && vf) {
+            collisions = collisions + 1;
+        }
+    }
+
+    // A compiled block ran its first executed instructions, going round from the end to the start again if it loops.
+    // Only the last instruction of a block can be a draw, and only the last one run can have left it in V[F]
+    void countBlock(int[] instrs, int executed, boolean vf) {
+        int length = instrs.length;
+        for (int i=0; i<executed - 1; i++) {
+            int c = OPCODE_CLASS[instrs[i % length]];
+            opcodeCounts.lazySet(c, opcodeCounts.get(c) + 1);
+        }
+        count(instrs[(executed - 1) % length], vf);
+    }
+
+    // A paced cycle started lateNanos after it was due
+    void clockLateness(long lateNanos) {
+        clockJitter.record(lateNanos);
+    }
+
+    // An emulated frame went by. period is how long a frame should take in real time, 0 when unthrottled
+    void frame(long cycles, long period) {
+        long now = System.nanoTime();
+        if (frameWallTimes.count() > 0) {
+            long frameTime = now - frameWallTimes.getLast();
+            frameTimes.record(frameTime);
+            // Throttled, a frame taking twice as long as it should means a 60Hz timer tick came a whole tick late
+            if (period > 0 && frameTime >= 2 * period) {
+                timerUnderruns = timerUnderruns + 1;
+            }
+        }
+
+        frameWallTimes.push(now);
+        frameCycles.push(cycles);
+        frameDraws.push(opcodeCounts.get(DRAW));
+
+        int oldest = frameWallTimes.count() - 1;
+        long elapsed = now - frameWallTimes.get(oldest);
+        if (elapsed > 0) {
+            // Rewinding can take cycles backwards
+            instructionsPerSecond = Math.max(0, frameCycles.getLast() - frameCycles.get(oldest)) * 1e9 / elapsed;
+            drawsPerSecond = (frameDraws.getLast() - frameDraws.get(oldest)) * 1e9 / elapsed;
+            framesPerSecond = oldest * 1e9 / elapsed;
+        }
+    }
+
+    // READING, from any thread
+
+    @Override
+    public long getInstructions() {
+        long total = 0;
+        for (int i=0; i<OPCODES.length; i++) {
+            total += opcodeCounts.get(i);
+        }
+        return total;
+    }
+
+    @Override
+    public double getInstructionsPerSecond() {
+        return instructionsPerSecond;
+    }
+
+    @Override
+    public double getFramesPerSecond() {
+        return framesPerSecond;
+    }
+
+    // Instructions run of each class, in OPCODES order
+    public long getOpcodeCount(int opcodeClass) {
+        return opcodeCounts.get(opcodeClass);
+    }
+
+    @Override
+    public Map<String, Long> getOpcodeCounts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (int i=0; i<OPCODES.length; i++) {
+            counts.put(OPCODES[i], opcodeCounts.get(i));
+        }
+        return counts;
+    }
+
+    @Override
+    public long getSpriteDraws() {
+        return opcodeCounts.get(DRAW);
+    }
+
+    @Override
+    public double getSpriteDrawsPerSecond() {
+        return drawsPerSecond;
+    }
+
+    @Override
+    public long getCollisions() {
+        return collisions;
+    }
+
+    @Override
+    public double getCollisionRate() {
+        long draws = getSpriteDraws();
+        return draws == 0 ? 0 : (double) collisions / draws;
+    }
+
+    @Override
+    public long getTimerUnderruns() {
+        return timerUnderruns;
+    }
+
+    @Override
+    public double getFrameTimeP50Millis() {
+        return frameTimes.percentile(0.5) / 1e6;
+    }
+
+    @Override
+    public double getFrameTimeP90Millis() {
+        return frameTimes.percentile(0.9) / 1e6;
+    }
+
+    @Override
+    public double getFrameTimeP99Millis() {
+        return frameTimes.percentile(0.99) / 1e6;
+    }
+
+    @Override
+    public double getFrameTimeMaxMillis() {
+        return frameTimes.getMax() / 1e6;
+    }
+
+    @Override
+    public double getClockJitterP50Micros() {
+        return clockJitter.percentile(0.5) / 1e3;
+    }
+
+    @Override
+    public double getClockJitterP90Micros() {
+        return clockJitter.percentile(0.9) / 1e3;
+    }
+
+    @Override
+    public double getClockJitterP99Micros() {
+        return clockJitter.percentile(0.99) / 1e3;
+    }
+
+    @Override
+    public double getClockJitterMaxMicros() {
+        return clockJitter.getMax() / 1e3;
+    }
+
+    @Override
+    public String dump() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("CHIP-8: %.1f Hz, %.1f FPS, %d instructions%n",
+                instructionsPerSecond, framesPerSecond, getInstructions()));
+        sb.append(String.format("  sprites: %.1f draws/s, %d draws, %.1f%% collided%n",
+                drawsPerSecond, getSpriteDraws(), getCollisionRate() * 100));
+        sb.append(String.format("  frame time ms: p50 %.2f, p90 %.2f, p99 %.2f, max %.2f%n",
+                getFrameTimeP50Millis(), getFrameTimeP90Millis(), getFrameTimeP99Millis(), getFrameTimeMaxMillis()));
+        if (clockJitter.getCount() > 0) {
+            sb.append(String.format("  clock jitter us: p50 %.1f, p90 %.1f, p99 %.1f, max %.1f%n",
+                    getClockJitterP50Micros(), getClockJitterP90Micros(), getClockJitterP99Micros(), getClockJitterMaxMicros()));
+        }
+        sb.append(String.format("  timer underruns: %d%n", timerUnderruns));
+
+        // Most common instructions first
+        Integer[] order = new Integer[OPCODES.length];
+        for (int i=0; i<order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingLong((Integer i) -> opcodeCounts.get(i)).reversed());
+        sb.append("  opcodes:");
+        for (int i : order) {
+            long count = opcodeCounts.get(i);
+            if (count == 0) {
+                break;
+            }
+            sb.append(' ').append(OPCODES[i]).append('=').append(count);
+        }
+        sb.append(System.lineSeparator());
+        return sb.toString();
+    }
+
+    // Expose these metrics through the platform MBean server, under com.mxbi.chip8:type=Metrics,name=<name>
+    public void register(String name) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                new ObjectName("com.mxbi.chip8:type=Metrics,name=" + ObjectName.quote(name)));
+    }
+
+    // Print dump() to out every periodMillis, on a background thread
+    public synchronized void startDump(PrintStream out, long periodMillis) {
+        if (dumper != null) {
+            throw new IllegalStateException("Already dumping metrics");
+        }
+        dumper = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(periodMillis);
+                    out.print(dump());
+                }
+            } catch (InterruptedException e) {
+                // stopDump()
+            }
+        }, "chip8-metrics");
+        dumper.setDaemon(true);
+        dumper.start();
+    }
+
+    public synchronized void stopDump() {
+        if (dumper != null) {
+            dumper.interrupt();
+            dumper = null;
+        }
+    }
+}
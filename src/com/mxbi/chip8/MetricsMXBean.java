@@ -0,0 +1,30 @@
+package com.mxbi.chip8;
+
+import java.util.Map;
+
+// What Metrics exposes over JMX, see Metrics.register()
+public interface MetricsMXBean {
+    long getInstructions();
+    double getInstructionsPerSecond();
+    double getFramesPerSecond();
+    Map<String, Long> getOpcodeCounts();
+
+    long getSpriteDraws();
+    double getSpriteDrawsPerSecond();
+    long getCollisions();
+    double getCollisionRate(); // Fraction of sprite draws that collided
+
+    long getTimerUnderruns();
+
+    double getFrameTimeP50Millis();
+    double getFrameTimeP90Millis();
+    double getFrameTimeP99Millis();
+    double getFrameTimeMaxMillis();
+
+    double getClockJitterP50Micros();
+    double getClockJitterP90Micros();
+    double getClockJitterP99Micros();
+    double getClockJitterMaxMicros();
+
+    String dump();
+}
@@ -1,22 +1,28 @@
 package com.mxbi.chip8;
 
-import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 
 public class ROMLoader {
-    public static short[] loadRomFromFile(String filename) throws IOException {
+    // Programs are loaded at 0x200, everything below is reserved for the interpreter (we keep the font there)
+    public static final int PROGRAM_START = 0x200;
+
+    public static byte[] readRomFromFile(String filename) throws IOException {
         Path path = Paths.get(filename);
-        byte[] bytes = Files.readAllBytes(path);
-        short[] program = new short[bytes.length];
+        byte[] program = Files.readAllBytes(path);
 
-        for (int i=0; i < bytes.length; i++) {
-            // Prevent signed integer extension when casting
-            program[i] = (short)(0x000000FF & (int)bytes[i]);
+        if (program.length > Memory.SIZE - PROGRAM_START) {
+            throw new IOException("ROM " + filename + " is too large: " + program.length + " bytes");
         }
-
         return program;
     }
+
+    // Load a ROM straight into memory at PROGRAM_START, returns the length of the program
+    public static int loadRomFromFile(String filename, Memory memory) throws IOException {
+        byte[] program = readRomFromFile(filename);
+        memory.write(PROGRAM_START, program, 0, program.length);
+        return program.length;
+    }
 }
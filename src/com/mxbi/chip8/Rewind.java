@@ -0,0 +1,283 @@
+package com.mxbi.chip8;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Rewind history: a snapshot of the whole machine once per emulated frame, kept in a fixed-size ring.
+// Each snapshot is flattened into an image (see the layout below) and stored XORed against the previous frame's
+// image, with runs of zeroes (unchanged bytes) skipped. Every KEYFRAME_INTERVAL frames the image is stored against
+// nothing instead, so restoring never has to replay more than KEYFRAME_INTERVAL deltas.
+// While rewinding is switched on (eg. a key held down, see setRewinding()) the CPU steps back a frame every frame
+// instead of taking snapshots.
+public class Rewind {
+    public static final int KEYFRAME_INTERVAL = 60;
+
+    // Image layout
+    private static final int RAM = 0;
+    private static final int V = RAM + Memory.SIZE;
+    private static final int STACK = V + 16;
+    private static final int I = STACK + 16 * 2;
+    private static final int PC = I + 2;
+    private static final int SP = PC + 2;
+    private static final int DELAY = SP + 1; // count (1 byte) then next decrement time (8 bytes)
+    private static final int SOUND = DELAY + 9;
+    private static final int SCREEN = SOUND + 9;
+    private static final int CYCLES = SCREEN + FrameBuffer.HEIGHT * 8;
+    private static final int TIME = CYCLES + 8;
+    private static final int RANDOM = TIME + 8; // Cxkk's generator, so rewound runs draw the same numbers again
+    private static final int NEXT_FRAME = RANDOM + 8; // So frames carry on at the same times after a restore
+    static final int IMAGE_SIZE = NEXT_FRAME + 8;
+
+    private static final byte KEYFRAME = 0;
+    private static final byte DELTA = 1;
+
+    // A delta literal only ends after this many unchanged bytes, so small gaps don't cost a new run header
+    private static final int MIN_ZERO_RUN = 4;
+
+    // Every frame where nothing changed shares this entry
+    private static final byte[] UNCHANGED = {DELTA};
+
+    private final SlidingBuffer<byte[]> history;
+    private final byte[] previous = new byte[IMAGE_SIZE];
+    private final byte[] current = new byte[IMAGE_SIZE];
+    private int framesSinceKeyframe = KEYFRAME_INTERVAL;
+    private long nextSnapshotTime = -1; // In emulated time, set on the first check()
+    private long bytesHeld = 0;
+    private volatile boolean rewinding = false;
+
+    // Entries are encoded here, then copied out at their final size. Grows to fit the largest entry so far
+    private byte[] encoded = new byte[IMAGE_SIZE];
+    private int encodedLength;
+
+    public Rewind(int seconds) {
+        if (seconds <= 0) {
+            throw new IllegalArgumentException("Rewind history must be at least one second, got " + seconds);
+        }
+        history = new SlidingBuffer<>(seconds * Timer.updateRate);
+    }
+
+    // Called by the CPU every frame, takes a snapshot whenever a frame's worth of emulated time has passed
+    void check(CPU cpu) {
+        if (cpu.emulatedTime < nextSnapshotTime) {
+            return;
+        }
+        if (nextSnapshotTime < 0) {
+            nextSnapshotTime = cpu.emulatedTime;
+        }
+        nextSnapshotTime += Timer.timeBetweenUpdates;
+        snapshot(cpu);
+    }
+
+    public void snapshot(CPU cpu) {
+        capture(cpu, current);
+
+        if (framesSinceKeyframe >= KEYFRAME_INTERVAL) {
+            encode(KEYFRAME, current, null);
+            framesSinceKeyframe = 0;
+        } else {
+            encode(DELTA, current, previous);
+            framesSinceKeyframe++;
+        }
+        byte[] entry = encodedLength == 1 && encoded[0] == DELTA ? UNCHANGED : Arrays.copyOf(encoded, encodedLength);
+        System.arraycopy(current, 0, previous, 0, IMAGE_SIZE);
+
+        if (history.isFilled()) {
+            bytesHeld -= history.getNthLast().length;
+        }
+        history.push(entry);
+        bytesHeld += entry.length;
+    }
+
+    // While this is on, the CPU goes back a frame every frame (until the oldest one) instead of taking snapshots
+    public void setRewinding(boolean rewinding) {
+        this.rewinding = rewinding;
+    }
+
+    public boolean isRewinding() {
+        return rewinding;
+    }
+
+    // Called by the CPU once a frame while rewinding: back to the snapshot before the latest one, or the oldest again
+    void stepBack(CPU cpu) {
+        int available = available();
+        if (available > 0) {
+            restore(cpu, Math.min(1, available - 1));
+        }
+    }
+
+    // How many frames back restore() can go. Deltas whose keyframe has fallen out of the ring can't be restored
+    public int available() {
+        for (int age = history.count() - 1; age >= 0; age--) {
+            if (history.get(age)[0] == KEYFRAME) {
+                return age + 1;
+            }
+        }
+        return 0;
+    }
+
+    // Memory used by the stored snapshots
+    public long bytesHeld() {
+        return bytesHeld;
+    }
+
+    // Put the machine back to how it was frames frames ago (0 is the latest snapshot) and forget everything newer,
+    // so history carries on from the restored point. Call this between CPU.run() calls, not during one.
+    public void restore(CPU cpu, int frames) {
+        if (frames < 0 || frames >= available()) {
+            throw new IllegalArgumentException("Can only rewind up to " + (available() - 1) + " frames, not " + frames);
+        }
+
+        int keyAge = frames;
+        while (history.get(keyAge)[0] != KEYFRAME) {
+            keyAge++;
+        }
+
+        Arrays.fill(current, (byte) 0);
+        for (int age = keyAge; age >= frames; age--) {
+            decode(history.get(age), current);
+        }
+
+        for (int age = 0; age < frames; age++) {
+            bytesHeld -= history.get(age).length;
+        }
+        history.dropLast(frames);
+        framesSinceKeyframe = keyAge - frames;
+        System.arraycopy(current, 0, previous, 0, IMAGE_SIZE);
+
+        apply(cpu, current);
+        nextSnapshotTime = ByteBuffer.wrap(current).getLong(NEXT_FRAME);
+    }
+
+    private static void capture(CPU cpu, byte[] image) {
+        cpu.ram.read(0, image, RAM, Memory.SIZE);
+        System.arraycopy(cpu.V, 0, image, V, 16);
+
+        ByteBuffer buf = ByteBuffer.wrap(image);
+        for (int i=0; i<16; i++) {
+            buf.putShort(STACK + i * 2, cpu.stack[i]);
+        }
+        buf.putShort(I, cpu.I);
+        buf.putShort(PC, cpu.PC);
+        buf.put(SP, cpu.SP);
+        buf.put(DELAY, (byte) cpu.delay.getTimer());
+        buf.putLong(DELAY + 1, cpu.delay.getNextDecrement());
+        buf.put(SOUND, (byte) cpu.sound.getTimer());
+        buf.putLong(SOUND + 1, cpu.sound.getNextDecrement());
+
+        FrameBuffer screen = cpu.display.getFrameBuffer();
+        for (int y=0; y<FrameBuffer.HEIGHT; y++) {
+            buf.putLong(SCREEN + y * 8, screen == null ? 0 : screen.getRow(y));
+        }
+
+        buf.putLong(CYCLES, cpu.getCycles());
+        buf.putLong(TIME, cpu.emulatedTime);
+        buf.putLong(RANDOM, cpu.randomState);
+        buf.putLong(NEXT_FRAME, cpu.nextFrameTime);
+    }
+
+    private static void apply(CPU cpu, byte[] image) {
+        cpu.ram.write(0, image, RAM, Memory.SIZE);
+        System.arraycopy(image, V, cpu.V, 0, 16);
+
+        ByteBuffer buf = ByteBuffer.wrap(image);
+        for (int i=0; i<16; i++) {
+            cpu.stack[i] = buf.getShort(STACK + i * 2);
+        }
+        cpu.I = buf.getShort(I);
+        cpu.PC = buf.getShort(PC);
+        cpu.SP = buf.get(SP);
+        cpu.delay.restore(buf.get(DELAY) & 0xFF, buf.getLong(DELAY + 1));
+        cpu.sound.restore(buf.get(SOUND) & 0xFF, buf.getLong(SOUND + 1));
+
+        FrameBuffer screen = cpu.display.getFrameBuffer();
+        if (screen != null) {
+            for (int y=0; y<FrameBuffer.HEIGHT; y++) {
+                screen.setRow(y, buf.getLong(SCREEN + y * 8));
+            }
+        }
+
+        cpu.randomState = buf.getLong(RANDOM);
+        cpu.restored(buf.getLong(CYCLES), buf.getLong(TIME), buf.getLong(NEXT_FRAME));
+    }
+
+    // Entry format: a type byte, then (zero run, literal length, literal bytes) triples until the end.
+    // Run and literal lengths are unsigned varints. Literal bytes are image XOR base (base is all zero for keyframes).
+    // Leaves the entry in encoded[0, encodedLength)
+    private void encode(byte type, byte[] image, byte[] base) {
+        encodedLength = 0;
+        write(type);
+
+        int pos = 0;
+        while (pos < IMAGE_SIZE) {
+            int start = pos;
+            while (pos < IMAGE_SIZE && diff(image, base, pos) == 0) {
+                pos++;
+            }
+            if (pos == IMAGE_SIZE) {
+                break;
+            }
+            int literalStart = pos;
+            int zeroes = 0;
+            while (pos < IMAGE_SIZE && zeroes < MIN_ZERO_RUN) {
+                zeroes = diff(image, base, pos) == 0 ? zeroes + 1 : 0;
+                pos++;
+            }
+            int literalEnd = pos - zeroes;
+            pos = literalEnd;
+
+            writeVarint(literalStart - start);
+            writeVarint(literalEnd - literalStart);
+            for (int i=literalStart; i<literalEnd; i++) {
+                write(diff(image, base, i));
+            }
+        }
+    }
+
+    private void write(int b) {
+        if (encodedLength == encoded.length) {
+            encoded = Arrays.copyOf(encoded, encoded.length * 2);
+        }
+        encoded[encodedLength++] = (byte) b;
+    }
+
+    // XOR an entry onto image
+    static void decode(byte[] entry, byte[] image) {
+        int[] cursor = {1};
+        int pos = 0;
+        while (cursor[0] < entry.length) {
+            pos += readVarint(entry, cursor);
+            int length = readVarint(entry, cursor);
+            int src = cursor[0];
+            for (int i=0; i<length; i++) {
+                image[pos + i] ^= entry[src + i];
+            }
+            pos += length;
+            cursor[0] += length;
+        }
+    }
+
+    private static int diff(byte[] image, byte[] base, int pos) {
+        return base == null ? image[pos] & 0xFF : (image[pos] ^ base[pos]) & 0xFF;
+    }
+
+    private void writeVarint(int value) {
+        while (value >= 0x80) {
+            write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        write(value);
+    }
+
+    private static int readVarint(byte[] entry, int[] cursor) {
+        int value = 0;
+        int shift = 0;
+        while (true) {
+            int b = entry[cursor[0]++];
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+}
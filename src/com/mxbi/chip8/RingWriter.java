@@ -0,0 +1,134 @@
+package com.mxbi.chip8;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+// A preallocated ring of records filled in by one producer thread (the CPU) and written out by a background thread,
+// shared by Tracer and FrameCapture. Subclasses keep the records in their own arrays, indexed by slot(): the producer
+// claims a sequence number, fills in its slot and publishes it, and the writer thread hands each published slot to
+// write(). Neither side allocates or takes a lock per record.
+//
+// When the ring is full the producer parks until the writer has made room (the writer unparks it), rather than
+// spinning. After a write fails the rest are skipped, but the ring keeps draining so the producer never gets stuck,
+// and close() throws the error.
+abstract class RingWriter implements Closeable {
+    final int capacity; // In records, a power of two
+    private volatile long head = 0; // Records published, only advanced by the producer
+    private volatile long tail = 0; // Records written out, only advanced by the writer thread
+
+    private final long pollNanos; // How long the writer sleeps when there's nothing to write
+    private final Thread writer;
+    private volatile Thread waiting; // The producer, while it's parked on a full ring
+    private volatile boolean closed = false;
+    private IOException error;
+
+    // Subclasses call start() once their own fields are set up
+    RingWriter(String threadName, int capacity, long pollNanos) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Ring capacity must be a power of two, got " + capacity);
+        }
+        this.capacity = capacity;
+        this.pollNanos = pollNanos;
+        writer = new Thread(this::drain, threadName);
+        writer.setDaemon(true);
+    }
+
+    void start() {
+        writer.start();
+    }
+
+    // Write out the record in slot, on the writer thread
+    abstract void write(int slot) throws IOException;
+
+    // Called on the writer thread once everything has been written, before closeOutput()
+    void flush() throws IOException {}
+
+    abstract void closeOutput() throws IOException;
+
+    int slot(long sequence) {
+        return (int) (sequence & (capacity - 1));
+    }
+
+    // Sequence number of the next free slot, parking until there is one. Fill it in, then publish() it
+    long claim() {
+        long h = head;
+        if (h - tail >= capacity) {
+            // The writer reads waiting after it moves tail, and we read tail after setting waiting, so one of us
+            // always sees the other. The timeout is only a backstop
+            waiting = Thread.currentThread();
+            while (h - tail >= capacity) {
+                LockSupport.unpark(writer);
+                LockSupport.parkNanos(this, pollNanos);
+            }
+            waiting = null;
+        }
+        return h;
+    }
+
+    // Like claim(), but returns -1 straight away if the ring is full
+    long tryClaim() {
+        long h = head;
+        return h - tail >= capacity ? -1 : h;
+    }
+
+    void publish(long sequence) {
+        head = sequence + 1;
+    }
+
+    private void drain() {
+        while (true) {
+            boolean finishing = closed;
+            long h = head;
+            long t = tail;
+            if (t == h) {
+                if (finishing) {
+                    break;
+                }
+                LockSupport.parkNanos(this, pollNanos);
+                continue;
+            }
+
+            for (; t < h; t++) {
+                if (error == null) {
+                    try {
+                        write(slot(t));
+                    } catch (IOException e) {
+                        error = e;
+                    }
+                }
+            }
+            tail = t;
+            Thread producer = waiting;
+            if (producer != null) {
+                LockSupport.unpark(producer);
+            }
+        }
+        if (error == null) {
+            try {
+                flush();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+    }
+
+    // Writes out everything published so far and closes the output
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closeOutput();
+        if (error != null) {
+            throw error;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.mxbi.chip8;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+
+// Every ROM in a directory, scanned once and indexed by a hash of its contents. Files with identical contents
+// share one RomImage, and each RomImage is shared by every machine that runs it (see RomImage.newMemory()),
+// so batch runs never go back to the disk or copy a ROM per run.
+public class RomCatalog {
+    private final Map<String, RomImage> byHash = new LinkedHashMap<>();
+    private final Map<String, RomImage> byName = new TreeMap<>();
+
+    public static RomCatalog scan(File dir) throws IOException {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".ch8") || name.endsWith(".rom"));
+        if (files == null) {
+            throw new IOException("Not a directory: " + dir);
+        }
+        Arrays.sort(files);
+
+        RomCatalog catalog = new RomCatalog();
+        for (File file : files) {
+            catalog.add(file.getName(), read(file));
+        }
+        return catalog;
+    }
+
+    // ROMs are a few KB at most, so one read of the whole file is all it takes. The size is checked first so a
+    // stray large file in the directory isn't read in just to be rejected
+    private static byte[] read(File file) throws IOException {
+        long size = Files.size(file.toPath());
+        if (size > Memory.SIZE - ROMLoader.PROGRAM_START) {
+            throw new IOException("ROM " + file + " is too large: " + size + " bytes");
+        }
+        return Files.readAllBytes(file.toPath());
+    }
+
+    // Returns the catalogued image, which is an existing one if a ROM with the same contents was added before
+    public RomImage add(String name, byte[] program) {
+        RomImage image = new RomImage(name, program);
+        RomImage existing = byHash.putIfAbsent(image.hash, image);
+        if (existing != null) {
+            image = existing;
+        }
+        byName.put(name, image);
+        return image;
+    }
+
+    public RomImage get(String hash) {
+        return byHash.get(hash);
+    }
+
+    public RomImage byName(String name) {
+        return byName.get(name);
+    }
+
+    // File names, sorted, including duplicates of the same contents
+    public Set<String> names() {
+        return Collections.unmodifiableSet(byName.keySet());
+    }
+
+    // Distinct ROMs, in the order they were found
+    public Collection<RomImage> images() {
+        return Collections.unmodifiableCollection(byHash.values());
+    }
+}
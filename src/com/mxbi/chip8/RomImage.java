@@ -0,0 +1,63 @@
+package com.mxbi.chip8;
+
+// A ROM as loaded by RomCatalog: the program and the initial RAM image it runs from (font plus program), built once
+// and shared by every machine running it. Nothing here is modified after construction, so it's safe to share between
+// threads. Derived data is worked out on first use and cached.
+public final class RomImage {
+    public final String name; // File it was first found in
+    public final String hash; // SHA-256 of the program, as used by AotCompiler
+
+    final byte[] program; // Shared, never modify it
+    private final byte[] image; // Initial RAM
+    private final byte[][] pages; // The same, as the pages CowMemory shares
+
+    private volatile String disassembly;
+
+    RomImage(String name, byte[] program) {
+        if (program.length > Memory.SIZE - ROMLoader.PROGRAM_START) {
+            throw new IllegalArgumentException("ROM " + name + " is too large: " + program.length + " bytes");
+        }
+        this.name = name;
+        this.hash = AotCompiler.hash(program);
+        this.program = program;
+
+        image = new byte[Memory.SIZE];
+        System.arraycopy(CPU.FONT, 0, image, 0, CPU.FONT.length);
+        System.arraycopy(program, 0, image, ROMLoader.PROGRAM_START, program.length);
+        pages = CowMemory.split(image);
+    }
+
+    public int length() {
+        return program.length;
+    }
+
+    public byte[] getProgram() {
+        return program.clone();
+    }
+
+    // Fresh RAM for a machine running this ROM, ready to hand to the CPU. Pages are only copied once the program
+    // writes to them
+    public Memory newMemory() {
+        return new CowMemory(pages);
+    }
+
+    // Copy the initial RAM into dest at offset, eg. for machines that keep their RAM side by side in one array
+    void copyImage(byte[] dest, int offset) {
+        System.arraycopy(image, 0, dest, offset, Memory.SIZE);
+    }
+
+    // One line per instruction word from PROGRAM_START, data included since we can't tell it apart
+    public String disassembly() {
+        String text = disassembly;
+        if (text == null) {
+            StringBuilder sb = new StringBuilder();
+            for (int i=0; i + 1 < program.length; i += 2) {
+                int instr = ((program[i] & 0xFF) << 8) | (program[i + 1] & 0xFF);
+                sb.append(String.format("%03X: %04X  %s%n", ROMLoader.PROGRAM_START + i, instr, Disassembler.disassemble(instr)));
+            }
+            text = sb.toString();
+            disassembly = text;
+        }
+        return text;
+    }
+}
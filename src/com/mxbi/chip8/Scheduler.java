@@ -0,0 +1,55 @@
+package com.mxbi.chip8;
+
+import java.util.Arrays;
+
+// Fires peripheral events (timer ticks, frames) at emulated cycle counts.
+// The CPU only compares its cycle count against nextDue after each step, so cycles where nothing is due cost
+// a single compare instead of polling every peripheral.
+final class Scheduler {
+    static final long NEVER = Long.MAX_VALUE;
+
+    interface Event {
+        // Called once the cycle count reaches the event's due cycle, returns the cycle it's next due at (or NEVER)
+        long fire(long cycle);
+    }
+
+    private Event[] events = new Event[0];
+    private long[] due = new long[0];
+
+    // Earliest due cycle of any event. May be earlier than any event is actually due after a reschedule,
+    // in which case fire() just finds nothing to do
+    long nextDue = NEVER;
+
+    // Returns the id to reschedule the event with. Due events fire in the order they were added
+    int add(Event event, long cycle) {
+        int id = events.length;
+        events = Arrays.copyOf(events, id + 1);
+        due = Arrays.copyOf(due, id + 1);
+        events[id] = event;
+        due[id] = cycle;
+        nextDue = Math.min(nextDue, cycle);
+        return id;
+    }
+
+    void schedule(int id, long cycle) {
+        due[id] = cycle;
+        nextDue = Math.min(nextDue, cycle);
+    }
+
+    // Cycle the event is next due at
+    long due(int id) {
+        return due[id];
+    }
+
+    // Fire everything due at or before cycle
+    void fire(long cycle) {
+        long next = NEVER;
+        for (int i=0; i<events.length; i++) {
+            if (due[i] <= cycle) {
+                due[i] = events[i].fire(cycle);
+            }
+            next = Math.min(next, due[i]);
+        }
+        nextDue = next;
+    }
+}
@@ -6,7 +6,7 @@ public class SlidingBuffer<T> {
 	private T[] buf;
 	private int ptr = 0;
 	private int size;
-	private boolean filled = false;
+	private int held = 0;
 
 	SlidingBuffer(int size) {
 		this.size = size;
@@ -18,12 +18,14 @@ public class SlidingBuffer<T> {
 		ptr += 1;
 		if (ptr >= size) {
 			ptr = 0;
-			filled = true;
+		}
+		if (held < size) {
+			held += 1;
 		}
 	}
 
 	public boolean isFilled() {
-		return filled;
+		return held == size;
 	}
 
 	// Nth-last element to be pushed into the buffer
@@ -42,4 +44,27 @@ public class SlidingBuffer<T> {
 	public int getN() {
 		return size;
 	}
+
+	// Number of elements currently held, at most getN()
+	public int count() {
+		return held;
+	}
+
+	// Element pushed age pushes ago, get(0) is the same as getLast()
+	public T get(int age) {
+		if (age < 0 || age >= count()) {
+			throw new IndexOutOfBoundsException("No element " + age + " pushes ago, only " + count() + " held");
+		}
+		int i = ptr - 1 - age;
+		return buf[i < 0 ? i + size : i];
+	}
+
+	// Forget the n most recently pushed elements
+	public void dropLast(int n) {
+		for (int i=0; i<n && held > 0; i++) {
+			ptr = ptr == 0 ? size - 1 : ptr - 1;
+			buf[ptr] = null;
+			held -= 1;
+		}
+	}
 }
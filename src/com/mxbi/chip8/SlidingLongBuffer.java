@@ -0,0 +1,57 @@
+package com.mxbi.chip8;
+
+// SlidingBuffer for primitive longs (eg. timestamps), so pushing never boxes or allocates
+public class SlidingLongBuffer {
+	private final long[] buf;
+	private int ptr = 0;
+	private final int size;
+	private int held = 0;
+
+	SlidingLongBuffer(int size) {
+		this.size = size;
+		buf = new long[size];
+	}
+
+	public void push(long value) {
+		buf[ptr] = value;
+		ptr += 1;
+		if (ptr >= size) {
+			ptr = 0;
+		}
+		if (held < size) {
+			held += 1;
+		}
+	}
+
+	public boolean isFilled() {
+		return held == size;
+	}
+
+	// Nth-last element to be pushed into the buffer
+	public long getNthLast() {
+		return buf[ptr];
+	}
+
+	// Last element to be pushed into the buffer
+	public long getLast() {
+		return get(0);
+	}
+
+	public int getN() {
+		return size;
+	}
+
+	// Number of elements currently held, at most getN()
+	public int count() {
+		return held;
+	}
+
+	// Element pushed age pushes ago, get(0) is the same as getLast()
+	public long get(int age) {
+		if (age < 0 || age >= count()) {
+			throw new IndexOutOfBoundsException("No element " + age + " pushes ago, only " + count() + " held");
+		}
+		int i = ptr - 1 - age;
+		return buf[i < 0 ? i + size : i];
+	}
+}
@@ -1,11 +1,20 @@
 package com.mxbi.chip8;
 
+// The tone plays for as long as the sound timer is non-zero
 public class SoundTimer extends Timer {
+	private AudioSink sink = AudioSink.SILENT;
+
+	void setSink(AudioSink sink) {
+		this.sink = sink;
+	}
+
 	@Override
 	void onSet(int count) {
-		System.out.println("BEEP!");
-		// TODO: Variable length beep
-//		java.awt.Toolkit.getDefaultToolkit().beep();
-		SoundUtils.playSine(1000, (int) (timeBetweenUpdates / 1e6) * count);
+		sink.setPlaying(count > 0);
+	}
+
+	@Override
+	void onTick(int count) {
+		sink.setPlaying(count > 0);
 	}
 }
@@ -1,39 +1,43 @@
 package com.mxbi.chip8;
 
-import javax.imageio.ImageIO;
 import javax.swing.*;
 import java.awt.*;
-import java.awt.image.BufferedImage;
-import java.io.File;
-import java.io.IOException;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
 import java.lang.reflect.InvocationTargetException;
-import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class SwingDisplay implements DisplayInterface, KeyboardInterface {
-    private boolean[][] disp = new boolean[64][32];
-    private boolean[][] lastFrame = Arrays.stream(disp).map(boolean[]::clone).toArray(boolean[][]::new);
+    private final FrameBuffer disp = new FrameBuffer(); // Only touched by the CPU thread
+    private final FrameBuffer lastFrame = new FrameBuffer(); // Only touched by the EDT
     public static final char[] keypad = {'x', '1', '2', '3', 'q', 'w', 'e', 'a', 's', 'd', 'z', 'c', '4', 'r', 'f', 'v'};
 
     private JFrame frame;
-    private JLabel label;
-    private ImageIcon imageIcon;
+    private ScreenPanel screen;
 
-    private SwingKeyboardListener keyboardListener = new SwingKeyboardListener();
+    // The CPU thread publishes finished frames here, and the EDT renders the newest one. Rendering (and painting)
+    // never holds up emulation, and the EDT never sees a frame that's still being drawn to
+    private final TripleBuffer frames = new TripleBuffer();
+    private final AtomicBoolean renderQueued = new AtomicBoolean();
+    private final Runnable drawNewFrame = this::drawNewFrame; // One instance, rather than a new one every frame
+
+    // Frames are rendered incrementally into one image, which is scaled to fit the window in whole pixels
+    private final FrameRenderer renderer = new FrameRenderer(10);
+    private int wantedScale = 10;
+
+    private final SwingKeyboardListener keyboardListener = new SwingKeyboardListener();
 
     public static final int frameRate = 60;
-    private static final long minFrameTimeNanos = (long) (1e9 / frameRate); // 60 fps
-    private long nextFrameTime = System.nanoTime();
 
-    // 1 second average for FPS/clock speed timers
-    private SlidingBuffer<Long> frameTimer = new SlidingBuffer<>(frameRate);
-    private SlidingBuffer<Long> execTimer = new SlidingBuffer<>(CPU.cpu_freq);
+    // 1 second average for FPS timer, clock speed is reported by the CPU
+    private final SlidingLongBuffer frameTimer = new SlidingLongBuffer(frameRate);
+    private volatile double instructionsPerSecond = 0;
+    private long lastTitleTime = 0; // The title is only updated once a second, formatting it allocates
 
     public static final Color BACKGROUND = new Color(0x525252); //new Color(0x333745);// new Color(0x202830);
     public static final Color FOREGROUND = new Color(0xFE5F55); //new Color(0x44BBA4);//new Color(0xF2AA4C);
     public static final Color PERSISTENCE = new Color(0xD35C54);
 
-    private int frame_i = 0;
-
 
     private void createGUI() {
         frame = new JFrame("CHIP-8");
@@ -42,14 +46,12 @@ public class SwingDisplay implements DisplayInterface, KeyboardInterface {
 
         frame.getContentPane().setBackground(Color.DARK_GRAY);
 
-        imageIcon = new ImageIcon();
-        label = new JLabel(imageIcon);
-
-        drawNewFrame();
+        screen = new ScreenPanel();
+        screen.setPreferredSize(new Dimension(640, 320));
 
         frame.addKeyListener(keyboardListener);
 
-        frame.getContentPane().add(label);
+        frame.getContentPane().add(screen);
         frame.pack();
         frame.setVisible(true);
 
@@ -59,126 +61,140 @@ public class SwingDisplay implements DisplayInterface, KeyboardInterface {
         SwingUtilities.invokeAndWait(this::createGUI);
     }
 
-    public void clear() {
-        disp = new boolean[64][32];
+    @Override
+    public FrameBuffer getFrameBuffer() {
+        return disp;
     }
 
-    private boolean getBit(short num, int bit) {
-        return ((num >> bit) & 1) == 1;
+    public void clear() {
+        disp.clear();
     }
 
     public boolean draw(short[] data, int x0, int y0) {
-        boolean flipped = false;
-
-        for (int y=0; y<data.length; y++) {
-            for (int x = 0; x < 8; x++) {
-                boolean bit = getBit(data[y], 7 - x);
-                int xco = (x0 + x) % 64;
-                int yco = (y0 + y) % 32;
-                if (bit) {
-                    if (disp[xco][yco]) {
-                        disp[xco][yco] = false;
-                        flipped = true;
-                    } else {
-                        disp[xco][yco] = true;
-                    }
+        return disp.draw(data, x0, y0);
+    }
+
+    @Override
+    public boolean draw(Memory memory, int offset, int length, int x0, int y0) {
+        return disp.draw(memory, offset, length, x0, y0);
+    }
+
+    // Shows the renderer's image centred in the window
+    private class ScreenPanel extends JComponent {
+        private static final long serialVersionUID = 1L;
+
+        ScreenPanel() {
+            addComponentListener(new ComponentAdapter() {
+                @Override
+                public void componentResized(ComponentEvent e) {
+                    wantedScale = Math.max(1, Math.min(getWidth() / FrameBuffer.WIDTH, getHeight() / FrameBuffer.HEIGHT));
+                    repaint();
                 }
-            }
+            });
+        }
+
+        int imageX() {
+            return (getWidth() - FrameBuffer.WIDTH * renderer.getScale()) / 2;
+        }
+
+        int imageY() {
+            return (getHeight() - FrameBuffer.HEIGHT * renderer.getScale()) / 2;
+        }
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            Rectangle clip = g.getClipBounds();
+            g.setColor(Color.DARK_GRAY);
+            g.fillRect(clip.x, clip.y, clip.width, clip.height);
+            g.drawImage(renderer.getImage(), imageX(), imageY(), null);
         }
-        return flipped;
     }
 
+    // Runs on the EDT, renders the newest published frame if there is one
     private void drawNewFrame() {
-        // Update the frame itself
-        BufferedImage bi = new BufferedImage(640, 320, BufferedImage.TYPE_INT_RGB);
-        Graphics2D gfx = bi.createGraphics();
-
-        gfx.setColor(BACKGROUND);
-        gfx.fillRect(0, 0, bi.getWidth(), bi.getHeight());
-
-        for (int y=0; y<32; y++) {
-            for (int x=0; x<64; x++) {
-                if (disp[x][y]) {
-                    gfx.setColor(FOREGROUND);
-                    gfx.fillRect(x * 10, y * 10, 10, 10);
-                } else {
-                    // 1-frame persistence
-                    if (lastFrame[x][y]) {
-                        gfx.setColor(PERSISTENCE);
-                        gfx.fillRect(x * 10, y * 10, 10, 10);
-                    } else {
-                        // We don't actually need to do anything
-//                        gfx.clearRect(x * 10, y * 10, 10, 10);
-                    }
-                }
-            }
+        renderQueued.set(false);
+        FrameBuffer next = frames.acquire();
+        if (next == null) {
+            return;
         }
 
-        lastFrame = Arrays.stream(disp).map(boolean[]::clone).toArray(boolean[][]::new);
-//
-//        try {
-//            ImageIO.write(bi, "png", new File(String.format("frames/frame%05d.png", frame_i)));
-//        } catch (IOException e) {
-//            e.printStackTrace();
-//        }
-//        frame_i += 1;
+        // Update the frame itself, then repaint just the rows that changed (or everything, after a resize)
+        int scale = wantedScale;
+        if (scale != renderer.getScale()) {
+            renderer.setScale(scale);
+            renderer.render(next, lastFrame);
+            screen.repaint();
+        } else if (renderer.render(next, lastFrame)) {
+            screen.repaint(screen.imageX(), screen.imageY() + renderer.getDirtyTop() * scale,
+                    FrameBuffer.WIDTH * scale, (renderer.getDirtyBottom() - renderer.getDirtyTop() + 1) * scale);
+        }
 
-        imageIcon.setImage(bi);
-        frame.repaint();
+        lastFrame.copyFrom(next);
 
         // Update the FPS/Clock counters
-        frameTimer.push(System.nanoTime());
+        long now = System.nanoTime();
+        frameTimer.push(now);
 
-        if (frameTimer.isFilled() && execTimer.isFilled()) {
+        if (frameTimer.isFilled() && now - lastTitleTime >= 1_000_000_000L) {
+            lastTitleTime = now;
 
             double nanosPerFrame = (double) (frameTimer.getLast() - frameTimer.getNthLast()) / (frameTimer.getN() - 1);
-            double nanosPerClock = (double) (execTimer.getLast() - execTimer.getNthLast()) / (execTimer.getN() - 1);
 
             double fps = 1e9 / nanosPerFrame;
-            double freq = 1e9 / nanosPerClock;
 
-            frame.setTitle(String.format("CHIP-8: %.1f Hz %.1f FPS", freq, fps));
+            frame.setTitle(String.format("CHIP-8: %.1f Hz %.1f FPS", instructionsPerSecond, fps));
         }
-
-        // Queue the next frame
-        nextFrameTime += minFrameTimeNanos;
     }
 
     @Override
-    // Called on every clock cycle
     public void check() {
-        long nanoTime = System.nanoTime();
-        execTimer.push(nanoTime);
+        check(System.nanoTime());
+    }
 
-        // We increment it by 16ms instead of just adding 16ms onto the current time
-        // This means that each frame compensates for the delay of the last frame, giving more accurate timing
-        if (nanoTime > nextFrameTime) {
-            drawNewFrame();
+    @Override
+    // Called once per emulated frame, the CPU schedules these so we don't have to keep track of time ourselves
+    public void check(long nanoTime) {
+        frames.publish(disp);
+        // At most one render waiting on the EDT at a time, it'll pick up whatever is newest when it runs
+        if (renderQueued.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(drawNewFrame);
         }
     }
 
+    @Override
+    public void reportSpeed(double instructionsPerSecond) {
+        this.instructionsPerSecond = instructionsPerSecond;
+    }
+
     @Override
     public boolean isPressed(int key) {
-        System.out.println("KEY ispressed? checked " + key + keypad[key] + ' ' + keyboardListener.isPressed(keypad[key]));
-        return keyboardListener.isPressed(keypad[key]);
+        return keyboardListener.isPressed(key);
     }
 
     @Override
-    public int waitForAnyKey() {
-        while (true) {
-            for (int i=0; i<=0xF; i++) {
-                if (keyboardListener.isPressed(keypad[i])) {
-                    return i;
-                }
-            }
+    public int pollAnyKey() {
+        int keys = keyboardListener.getPressedKeys();
+        return keys == 0 ? -1 : Integer.numberOfTrailingZeros(keys);
+    }
 
-            frame.setTitle("CHIP-8: Waiting for key!");
-        }
+    @Override
+    public int getPressedKeys() {
+        return keyboardListener.getPressedKeys();
+    }
+
+    @Override
+    public void setKeyListener(Runnable listener) {
+        keyboardListener.setOnPress(listener);
+    }
+
+    // Holding the rewind key switches rewinding on until it's let go
+    public void setRewind(Rewind rewind) {
+        keyboardListener.setOnRewind(rewind::setRewinding);
     }
 
     @Override
     public void executionFinished() {
-        frame.setTitle("CHIP-8: Execution finished! Exiting in 5s...");
+        SwingUtilities.invokeLater(() -> frame.setTitle("CHIP-8: Execution finished! Exiting in 5s..."));
          new Thread(() -> {
              try {
                  Thread.sleep(5000);
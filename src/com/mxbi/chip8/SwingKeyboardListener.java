@@ -2,24 +2,75 @@ package com.mxbi.chip8;
 
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
+// Keypad state as one bit per CHIP-8 key. Written on the EDT and read by the CPU thread, so it lives in an
+// AtomicInteger: checking a key is a volatile read and a bit test, with no locking or allocation
 public class SwingKeyboardListener extends KeyAdapter {
-    private HashSet<Character> keysPressed = new HashSet<>();
+    // CHIP-8 key for each AWT key code, -1 for keys that aren't on the keypad
+    private static final int[] keyForCode = new int[256];
+
+    static {
+        Arrays.fill(keyForCode, -1);
+        for (int key=0; key<SwingDisplay.keypad.length; key++) {
+            keyForCode[KeyEvent.getExtendedKeyCodeForChar(SwingDisplay.keypad[key])] = key;
+        }
+    }
+
+    // Held down to go back in time, see Rewind
+    public static final int REWIND_KEY = KeyEvent.VK_BACK_SPACE;
+
+    private final AtomicInteger keysPressed = new AtomicInteger();
+    private volatile Runnable onPress = () -> {};
+    private volatile Consumer<Boolean> onRewind = held -> {};
+
+    private static int keyFor(KeyEvent event) {
+        int code = event.getKeyCode();
+        return code >= 0 && code < keyForCode.length ? keyForCode[code] : -1;
+    }
 
     @Override
     public void keyPressed(KeyEvent event) {
-        char ch = event.getKeyChar();
-        keysPressed.add(ch);
+        if (event.getKeyCode() == REWIND_KEY) {
+            onRewind.accept(true);
+        }
+        int key = keyFor(event);
+        if (key >= 0) {
+            keysPressed.getAndAccumulate(1 << key, (keys, bit) -> keys | bit);
+            onPress.run();
+        }
     }
 
     @Override
     public void keyReleased(KeyEvent event) {
-        char ch = event.getKeyChar();
-        keysPressed.remove(ch);
+        if (event.getKeyCode() == REWIND_KEY) {
+            onRewind.accept(false);
+        }
+        int key = keyFor(event);
+        if (key >= 0) {
+            keysPressed.getAndAccumulate(~(1 << key), (keys, mask) -> keys & mask);
+        }
+    }
+
+    // Run after a keypad key is pressed, on the EDT
+    public void setOnPress(Runnable onPress) {
+        this.onPress = onPress;
+    }
+
+    // Run with true when the rewind key goes down (again for each key repeat) and false when it comes up, on the EDT
+    public void setOnRewind(Consumer<Boolean> onRewind) {
+        this.onRewind = onRewind;
+    }
+
+    // key is a CHIP-8 key, 0x0-0xF
+    public boolean isPressed(int key) {
+        return key < 16 && (keysPressed.get() & (1 << key)) != 0;
     }
 
-    public boolean isPressed(char key) {
-        return keysPressed.contains(key);
+    // Bit n is set if CHIP-8 key n is held down
+    public int getPressedKeys() {
+        return keysPressed.get();
     }
 }
@@ -9,8 +9,13 @@ public abstract class Timer {
     private long nextDecrement;
 
     void setTimer(int count) {
+        setTimer(count, System.nanoTime());
+    }
+
+    // nanoTime is the (possibly emulated) current time, see CPU.run()
+    void setTimer(int count, long nanoTime) {
         this.count = count;
-        setTime = System.nanoTime();
+        setTime = nanoTime;
         this.nextDecrement = setTime + timeBetweenUpdates;
 
         onSet(count);
@@ -20,12 +25,37 @@ public abstract class Timer {
         return count;
     }
 
+    // Emulated time after which the next check() will decrement the timer
+    long getDeadline() {
+        return count > 0 ? nextDecrement : Long.MAX_VALUE;
+    }
+
+    long getNextDecrement() {
+        return nextDecrement;
+    }
+
+    // Put the timer back into a snapshotted state, without calling onSet() (so restoring doesn't beep)
+    void restore(int count, long nextDecrement) {
+        this.count = count;
+        this.nextDecrement = nextDecrement;
+        this.setTime = nextDecrement - timeBetweenUpdates;
+        onTick(count);
+    }
+
     void onSet(int count) {};
 
+    // Called whenever the count changes other than by setTimer(), ie. on every decrement (and on restore())
+    void onTick(int count) {};
+
     void check() {
-        if (count > 0 && System.nanoTime() > nextDecrement) {
+        check(System.nanoTime());
+    }
+
+    void check(long nanoTime) {
+        if (count > 0 && nanoTime > nextDecrement) {
             count--;
             nextDecrement += timeBetweenUpdates;
+            onTick(count);
         }
     }
 }
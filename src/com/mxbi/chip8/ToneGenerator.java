@@ -0,0 +1,84 @@
+package com.mxbi.chip8;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+import java.util.Arrays;
+
+// Plays the beep on one long-lived thread through a line that's opened once and kept running.
+// The thread writes small blocks, either the next stretch of a precomputed sine wavetable or silence, depending on
+// whether the tone is on. The line's buffer only holds a few blocks, so the tone starts and stops well within
+// one 60Hz timer tick.
+public class ToneGenerator implements AudioSink {
+    public static final float SAMPLE_RATE = 24000f;
+    public static final int FREQUENCY = 1000;
+    private static final int BLOCK_SAMPLES = (int) (SAMPLE_RATE / 240); // ~4ms
+    private static final int BUFFERED_BLOCKS = 4;
+
+    // One period of the tone, 8-bit signed
+    private static final byte[] wavetable = new byte[Math.round(SAMPLE_RATE / FREQUENCY)];
+
+    static {
+        for (int i=0; i<wavetable.length; i++) {
+            wavetable[i] = (byte) (Math.sin(2 * Math.PI * i / wavetable.length) * 127);
+        }
+    }
+
+    private final SourceDataLine line;
+    private final Thread thread;
+    private volatile boolean playing = false;
+    private volatile boolean closed = false;
+
+    // Throws if there's no audio device, see open() for falling back to silence
+    public ToneGenerator() throws LineUnavailableException {
+        AudioFormat format = new AudioFormat(SAMPLE_RATE, 8, 1, true, false);
+        line = AudioSystem.getSourceDataLine(format);
+        line.open(format, BLOCK_SAMPLES * BUFFERED_BLOCKS);
+        line.start();
+
+        thread = new Thread(this::play, "chip8-audio");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // A ToneGenerator, or AudioSink.SILENT if audio isn't available
+    public static AudioSink open() {
+        try {
+            return new ToneGenerator();
+        } catch (LineUnavailableException | IllegalArgumentException e) {
+            System.out.println("No audio available, running without sound: " + e.getMessage());
+            return AudioSink.SILENT;
+        }
+    }
+
+    private void play() {
+        byte[] block = new byte[BLOCK_SAMPLES];
+        int phase = 0;
+        while (!closed) {
+            if (playing) {
+                for (int i=0; i<block.length; i++) {
+                    block[i] = wavetable[phase];
+                    phase = phase + 1 == wavetable.length ? 0 : phase + 1;
+                }
+            } else {
+                Arrays.fill(block, (byte) 0);
+                phase = 0;
+            }
+            // Blocks while the line's buffer is full, which is what paces this loop
+            line.write(block, 0, block.length);
+        }
+        line.stop();
+        line.close();
+    }
+
+    @Override
+    public void setPlaying(boolean playing) {
+        this.playing = playing;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+}
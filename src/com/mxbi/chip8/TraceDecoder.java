@@ -0,0 +1,64 @@
+package com.mxbi.chip8;
+
+import java.io.*;
+
+// Turns a trace written by Tracer back into readable disassembly, one instruction per line:
+//   <cycle> <PC>: <instruction> <mnemonic>  I=<I> <registers that changed>
+// Usage: TraceDecoder <trace file>
+public class TraceDecoder {
+    public static void decode(InputStream in, PrintStream out) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        if (data.readInt() != Tracer.MAGIC) {
+            throw new IOException("Not a CHIP-8 trace file");
+        }
+        int version = data.readInt();
+        if (version != Tracer.VERSION) {
+            throw new IOException("Unsupported trace version " + version);
+        }
+
+        long cycle = 0;
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            int b = data.read();
+            if (b < 0) {
+                break;
+            }
+            cycle += readVarint(data, b);
+            int pc = data.readUnsignedShort();
+            int instr = data.readUnsignedShort();
+            int I = data.readUnsignedShort();
+            int changed = data.readUnsignedShort();
+
+            line.setLength(0);
+            line.append(String.format("%10d %03X: %04X  %-18s I=%03X", cycle, pc, instr, Disassembler.disassemble(instr), I));
+            for (int i=0; i<16; i++) {
+                if ((changed & (1 << i)) != 0) {
+                    line.append(String.format(" V%X=%02X", i, data.readUnsignedByte()));
+                }
+            }
+            out.println(line);
+        }
+    }
+
+    private static long readVarint(DataInputStream data, int first) throws IOException {
+        long value = first & 0x7F;
+        int shift = 7;
+        int b = first;
+        while ((b & 0x80) != 0) {
+            b = data.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        }
+        return value;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: TraceDecoder <trace file>");
+            System.exit(1);
+        }
+        try (InputStream in = new FileInputStream(args[0])) {
+            decode(in, System.out);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.mxbi.chip8;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+// Records every executed instruction (cycle, PC, opcode, I and the V registers it changed) into a preallocated ring
+// of longs. A background thread drains the ring into a compact binary file (see RingWriter), see TraceDecoder for
+// reading it back. Recording never allocates. If the writer falls a whole ring behind, the CPU parks until it catches
+// up, so traces have no gaps.
+//
+// File format (big-endian): magic "C8TR", int version, then one record per instruction:
+//   varint cycles since the previous record, u16 PC, u16 instruction, u16 I (after the instruction),
+//   u16 mask of V registers that changed, and the new value of each of those registers (one byte each, V0 first)
+public class Tracer extends RingWriter {
+    static final int MAGIC = 0x43385452; // "C8TR"
+    static final int VERSION = 1;
+
+    // cycle, PC/instruction/I/changed mask, V0-V7, V8-VF
+    private static final int LONGS_PER_RECORD = 4;
+    private static final int MAX_RECORD_BYTES = 10 + 8 + 16;
+
+    private final long[] ring;
+
+    private final byte[] lastV = new byte[16]; // V as of the last record, to work out what changed
+
+    private final FileChannel out;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16); // Writer thread only
+    private long lastCycle = 0;
+
+    public Tracer(File file) throws IOException {
+        this(file, 1 << 16);
+    }
+
+    public Tracer(File file, int capacity) throws IOException {
+        super("chip8-trace", capacity, 1000000);
+        ring = new long[capacity * LONGS_PER_RECORD];
+
+        out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        start();
+    }
+
+    // Called by the CPU after each instruction, with the PC and instruction it ran and the state it left behind
+    void record(long cycle, int pc, int instr, int I, byte[] V) {
+        long sequence = claim();
+
+        int changed = 0;
+        long low = 0;
+        long high = 0;
+        for (int i=0; i<8; i++) {
+            low |= (V[i] & 0xFFL) << (i * 8);
+            high |= (V[i + 8] & 0xFFL) << (i * 8);
+        }
+        for (int i=0; i<16; i++) {
+            if (V[i] != lastV[i]) {
+                changed |= 1 << i;
+                lastV[i] = V[i];
+            }
+        }
+
+        int base = slot(sequence) * LONGS_PER_RECORD;
+        ring[base] = cycle;
+        ring[base + 1] = ((long) (pc & 0xFFFF) << 48) | ((long) (instr & 0xFFFF) << 32) | ((long) (I & 0xFFFF) << 16) | changed;
+        ring[base + 2] = low;
+        ring[base + 3] = high;
+        publish(sequence);
+    }
+
+    @Override
+    void write(int slot) throws IOException {
+        int base = slot * LONGS_PER_RECORD;
+        long cycle = ring[base];
+        long header = ring[base + 1];
+        int changed = (int) (header & 0xFFFF);
+
+        putVarint(cycle - lastCycle);
+        lastCycle = cycle;
+        buffer.putShort((short) (header >>> 48));
+        buffer.putShort((short) (header >>> 32));
+        buffer.putShort((short) (header >>> 16));
+        buffer.putShort((short) changed);
+        for (int i=0; i<16; i++) {
+            if ((changed & (1 << i)) != 0) {
+                buffer.put((byte) (ring[base + 2 + i / 8] >>> ((i % 8) * 8)));
+            }
+        }
+
+        if (buffer.remaining() < MAX_RECORD_BYTES) {
+            flush();
+        }
+    }
+
+    private void putVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    @Override
+    void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    void closeOutput() throws IOException {
+        out.close();
+    }
+}
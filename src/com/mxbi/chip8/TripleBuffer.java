@@ -0,0 +1,32 @@
+package com.mxbi.chip8;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Lock-free handoff of frames from one producer thread (the CPU) to one consumer thread (rendering).
+// There are three buffers: the producer owns one (back), the consumer owns one (front), and the third (middle)
+// holds the newest published frame. Publishing and acquiring just swap a buffer with the middle one, so neither
+// side ever waits for the other, and the consumer always gets the latest frame (older unread ones are dropped).
+final class TripleBuffer {
+    private static final int FRESH = 4; // Set in state when middle holds a frame the consumer hasn't seen
+
+    private final FrameBuffer[] buffers = {new FrameBuffer(), new FrameBuffer(), new FrameBuffer()};
+    private final AtomicInteger state = new AtomicInteger(1); // Index of middle, plus FRESH
+    private int back = 0; // Only touched by the producer
+    private int front = 2; // Only touched by the consumer
+
+    // Producer: copy frame into the back buffer and make it the newest frame
+    void publish(FrameBuffer frame) {
+        buffers[back].copyFrom(frame);
+        back = state.getAndSet(back | FRESH) & 3;
+    }
+
+    // Consumer: the newest published frame, or null if nothing was published since the last call.
+    // The returned buffer stays untouched until the next acquire()
+    FrameBuffer acquire() {
+        if ((state.get() & FRESH) == 0) {
+            return null;
+        }
+        front = state.getAndSet(front) & 3;
+        return buffers[front];
+    }
+}